@@ -1,32 +1,123 @@
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.Headers;
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
 public class AITutorServer {
 
     // API key loaded from .env file or environment variable
     private static final String API_KEY = loadApiKey();
 
+    // Shared upstream client, reuses connections across questions
+    private static final GeminiClient GEMINI = GeminiClient.fromConfig(API_KEY);
+
+    // Runs request handlers and response parsing, see createExecutor()
+    private static final ExecutorService HANDLER_EXECUTOR = createExecutor();
+
+    // Bounds questions in flight and waiting, shedding the excess with 503
+    private static final AdmissionController ADMISSION = AdmissionController.fromConfig(HANDLER_EXECUTOR);
+
+    // Exchange attribute holding an AtomicBoolean, set once the admitted question is finished
+    private static final String FINISHED = "aitutor.finished";
+
+    // Answers already given, keyed by subject and normalized question
+    private static final AnswerCache ANSWER_CACHE = AnswerCache.fromConfig();
+
+    // Answers kept across restarts, null when DISK_CACHE_ENABLED=false
+    private static final DiskAnswerCache DISK_CACHE = DiskAnswerCache.fromConfig();
+
+    // Paraphrase matches within a subject, null when NEAR_CACHE_ENABLED=false
+    private static final NearDuplicateCache NEAR_CACHE = NearDuplicateCache.fromConfig();
+
+    // Identical questions already waiting on Gemini, keyed like the answer cache
+    private static final SingleFlight<String, String> IN_FLIGHT = new SingleFlight<>();
+
+    // Per-session conversation history, null when HISTORY_ENABLED=false
+    private static final ConversationLog HISTORY = ConversationLog.fromConfig();
+
+    // Earlier turns of a conversation sent to Gemini with each follow-up question
+    private static final int HISTORY_CONTEXT_TURNS = TutorConfig.getInt("HISTORY_CONTEXT_TURNS", 6);
+
+    // Client-side token bucket that keeps Gemini calls within the quota
+    private static final QuotaGovernor QUOTA = QuotaGovernor.fromConfig();
+
+    // Backoff and deadline for retrying 429, 5xx and connection errors
+    private static final RetryPolicy RETRY = RetryPolicy.fromConfig();
+
+    // Adaptive cap on generateContent calls in flight, learned from round trips and 429/5xx
+    private static final ConcurrencyLimiter LIMITER = ConcurrencyLimiter.fromConfig();
+
+    // Second call for slow generateContent answers, null unless HEDGE_ENABLED=true
+    private static final GeminiHedger HEDGER = GeminiHedger.fromConfig(GEMINI, QUOTA::tryAcquire);
+
+    // Longest a question may wait for a quota token before getting BUSY_REPLY
+    private static final long QUOTA_MAX_WAIT_MS = TutorConfig.getLong("GEMINI_MAX_WAIT_MS", 10_000);
+
+    // Questions from one /ask/batch call that may be answered at the same time
+    private static final int BATCH_PARALLELISM = Math.max(1, TutorConfig.getInt("BATCH_PARALLELISM", 4));
+
+    // Largest number of questions accepted in one /ask/batch call
+    private static final int BATCH_MAX_ITEMS = TutorConfig.getInt("BATCH_MAX_ITEMS", 200);
+
+    // Batch questions are not waited on by a student, so they may queue longer for quota
+    private static final long BATCH_MAX_WAIT_MS = TutorConfig.getLong("BATCH_MAX_WAIT_MS", 120_000);
+
+    // Questions one WebSocket may have unanswered before the server stops reading its next ones
+    private static final int WS_MAX_PENDING = Math.max(1, TutorConfig.getInt("WS_MAX_PENDING", 4));
+
+    // Sent with 503 when the quota cannot serve a question in time
+    private static final String BUSY_REPLY = "⚠️ The tutor is busy right now (too many questions at once). Please try again in a few seconds.";
+
+    // Sent with 503 while the circuit breaker has paused calls to a failing Gemini
+    private static final String UNAVAILABLE_REPLY = "⚠️ The AI service is having trouble right now. Please try again in a little while.";
+
+    // Sent when a question matches none of ALLOWED_SUBJECTS
+    private static final String OFF_TOPIC_REPLY = "❌ Sorry, I can only answer questions about: Java, C++, Data Structures, Operating Systems, DBMS, and Networks. Please ask about one of these topics.";
+
+    // Replies starting with this are errors and are never cached
+    private static final String ERROR_PREFIX = "⚠️";
+
     // Allowed subjects with keywords for better matching
-    private static final Map<String, String[]> ALLOWED_SUBJECTS = new HashMap<>();
+    // Insertion order breaks ties between subjects with the same number of hits
+    private static final Map<String, String[]> ALLOWED_SUBJECTS = new LinkedHashMap<>();
+
+    // Keyword automaton over ALLOWED_SUBJECTS, built once at startup
+    private static final SubjectMatcher SUBJECT_MATCHER;
 
     static {
-        ALLOWED_SUBJECTS.put("Java", new String[] { "java", "jvm", "spring", "servlet" });
+        ALLOWED_SUBJECTS.put("Java", new String[] { "java", "javascript", "jvm", "spring", "servlet" });
         ALLOWED_SUBJECTS.put("C++", new String[] { "c++", "cpp", "c plus" });
         ALLOWED_SUBJECTS.put("Data Structures",
                 new String[] { "data structure", "array", "linked list", "tree", "graph", "stack", "queue", "heap" });
         ALLOWED_SUBJECTS.put("Operating Systems",
-                new String[] { "operating system", "os", "process", "thread", "memory management", "scheduling" });
+                new String[] { "operating system", "os", "process", "thread", "multithread", "memory management",
+                        "scheduling" });
         ALLOWED_SUBJECTS.put("DBMS",
-                new String[] { "dbms", "database", "sql", "query", "normalization", "transaction" });
+                new String[] { "dbms", "database", "sql", "mysql", "postgresql", "sqlite", "nosql", "query",
+                        "normalization", "transaction" });
         ALLOWED_SUBJECTS.put("Networks", new String[] { "network", "tcp", "ip", "http", "osi", "protocol" });
+        SUBJECT_MATCHER = new SubjectMatcher(ALLOWED_SUBJECTS);
+        GeminiPayload.precompile(ALLOWED_SUBJECTS.keySet());
     }
 
     /**
@@ -34,32 +125,14 @@ public class AITutorServer {
      */
     private static String loadApiKey() {
         // First try to read from .env file
-        try {
-            File envFile = new File(".env");
-            if (envFile.exists()) {
-                BufferedReader reader = new BufferedReader(new FileReader(envFile));
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    line = line.trim();
-                    if (line.startsWith("GEMINI_API_KEY=")) {
-                        String key = line.substring(15).trim();
-                        // Remove quotes if present
-                        if (key.startsWith("\"") && key.endsWith("\"")) {
-                            key = key.substring(1, key.length() - 1);
-                        }
-                        reader.close();
-                        System.out.println("✅ API key loaded from .env file");
-                        return key;
-                    }
-                }
-                reader.close();
-            }
-        } catch (IOException e) {
-            System.err.println("⚠️ Could not read .env file: " + e.getMessage());
+        String key = TutorConfig.fromEnvFile("GEMINI_API_KEY");
+        if (key != null) {
+            System.out.println("✅ API key loaded from .env file");
+            return key;
         }
 
         // Fallback to environment variable
-        String key = System.getenv("GEMINI_API_KEY");
+        key = System.getenv("GEMINI_API_KEY");
         if (key != null && !key.isEmpty()) {
             System.out.println("✅ API key loaded from environment variable");
             return key;
@@ -77,14 +150,26 @@ public class AITutorServer {
             return;
         }
 
+        // HTTP_SERVER=nio swaps com.sun.net.httpserver for the selector-based NioHttpServer
+        String serverMode = TutorConfig.get("HTTP_SERVER", "jdk");
+        boolean useNio = "nio".equalsIgnoreCase(serverMode);
+        if (!useNio && !"jdk".equalsIgnoreCase(serverMode)) {
+            System.out.println("⚠️ Unknown HTTP_SERVER '" + serverMode + "', using jdk");
+        }
+
         // Try multiple ports until we find one that's available
         int[] portsToTry = { 8080, 8081, 8082, 9090, 9091, 3000, 5000 };
         HttpServer server = null;
+        NioHttpServer nioServer = null;
         int usedPort = -1;
 
         for (int port : portsToTry) {
             try {
-                server = HttpServer.create(new InetSocketAddress(port), 0);
+                if (useNio) {
+                    nioServer = NioHttpServer.create(new InetSocketAddress(port), HANDLER_EXECUTOR);
+                } else {
+                    server = HttpServer.create(new InetSocketAddress(port), 0);
+                }
                 usedPort = port;
                 break; // Success! Exit the loop
             } catch (java.net.BindException e) {
@@ -92,390 +177,1401 @@ public class AITutorServer {
             }
         }
 
-        if (server == null) {
+        if (usedPort < 0) {
             System.err.println("❌ ERROR: All ports are in use! Please close some applications.");
             return;
         }
 
         System.out.println("🚀 AI Tutor backend running at http://localhost:" + usedPort + "/");
-        System.out.println("📝 Update your index.html to use port " + usedPort);
+        System.out.println("🌐 Open http://localhost:" + usedPort + "/ to chat");
         System.out.println("🤖 Using Google Gemini API (Free Tier: 60 requests/min)");
+        if (!GeminiClient.DEFAULT_BASE_URL.equals(GEMINI.baseUrl())) {
+            System.out.println("🧪 Gemini calls go to " + GEMINI.baseUrl());
+        }
+
+        Map<String, HttpHandler> contexts = new LinkedHashMap<>();
+        contexts.put("/ask", admitted(AITutorServer::handleRequest));
+        contexts.put("/ask/stream", admitted(AITutorServer::handleStreamRequest));
+        contexts.put("/ask/batch", admitted(AITutorServer::handleBatchRequest));
+        contexts.put("/metrics", AITutorServer::handleMetrics);
+        // One long-lived connection per tab; questions on it are admitted one by one
+        contexts.put("/ws", AITutorServer::handleWebSocket);
+        // Everything else is the frontend, served from the same origin so questions need no CORS preflight
+        contexts.put("/", StaticAssets.fromConfig());
+        registerMetrics();
+
+        if (nioServer != null) {
+            contexts.forEach(nioServer::createContext);
+            TutorMetrics.registerGauge("aitutor_http_connections", "Open client connections on the NIO server", nioServer::connections);
+            TutorMetrics.registerCounter("aitutor_http_requests_total", "Requests parsed by the NIO server", nioServer::requests);
+            nioServer.start();
+        } else {
+            contexts.forEach(server::createContext);
+            server.setExecutor(HANDLER_EXECUTOR);
+            server.start();
+        }
+    }
 
-        server.createContext("/ask", AITutorServer::handleRequest);
-        server.setExecutor(null);
-        server.start();
+    /**
+     * Creates the executor that runs request handlers
+     * EXECUTOR_MODE=virtual (default) uses one virtual thread per request,
+     * EXECUTOR_MODE=platform uses a fixed pool of EXECUTOR_THREADS threads
+     */
+    private static ExecutorService createExecutor() {
+        String mode = TutorConfig.get("EXECUTOR_MODE", "virtual");
+        int threads = TutorConfig.getInt("EXECUTOR_THREADS", 64);
+
+        if ("virtual".equalsIgnoreCase(mode)) {
+            try {
+                // Looked up reflectively so the server still compiles and runs on JDK 11-20
+                ExecutorService executor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                System.out.println("🧵 Handling requests on virtual threads");
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                System.out.println("⚠️ Virtual threads need JDK 21+, falling back to a platform pool");
+            }
+        } else if (!"platform".equalsIgnoreCase(mode)) {
+            System.out.println("⚠️ Unknown EXECUTOR_MODE '" + mode + "', using a platform pool");
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "ask-handler-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        System.out.println("🧵 Handling requests on a pool of " + Math.max(1, threads) + " threads");
+        return executor;
+    }
+
+    /**
+     * Runs a question handler once ADMISSION lets it in, or answers 503 + Retry-After
+     * CORS preflights skip admission since they do no work
+     * Whichever path ends the question (sendResponse, finishStream, a failed read)
+     * marks the exchange finished; if the handler throws before any did, it ends here
+     */
+    private static HttpHandler admitted(HttpHandler handler) {
+        return exchange -> {
+            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
+                handler.handle(exchange);
+                return;
+            }
+            ADMISSION.submit(() -> {
+                exchange.setAttribute(FINISHED, new AtomicBoolean());
+                TutorMetrics.requestStarted();
+                try {
+                    handler.handle(exchange);
+                } catch (IOException | RuntimeException e) {
+                    TutorLog.error("request", "❌ Handler failed: " + e.getMessage(), e);
+                    requestFinished(exchange);
+                    exchange.close();
+                }
+            }, retryAfterSeconds -> {
+                TutorLog.warn("request", "🚦 Overloaded (" + ADMISSION.inFlight() + " in flight, "
+                        + ADMISSION.queued() + " waiting), shedding a question");
+                try {
+                    sendCORS(exchange);
+                    exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                    writeResponse(exchange, 503, BUSY_REPLY);
+                } catch (IOException e) {
+                    exchange.close();
+                }
+            });
+        };
+    }
+
+    /**
+     * Ends an admitted question: drops the in-flight gauge and frees its admission slot
+     */
+    private static void requestFinished() {
+        TutorMetrics.requestFinished();
+        ADMISSION.release();
+    }
+
+    /**
+     * Ends the question behind exchange unless something already has
+     * Exchanges that were never admitted carry no flag and are left alone
+     */
+    private static void requestFinished(HttpExchange exchange) {
+        AtomicBoolean finished = (AtomicBoolean) exchange.getAttribute(FINISHED);
+        if (finished != null && finished.compareAndSet(false, true)) {
+            requestFinished();
+        }
     }
 
     private static void handleRequest(HttpExchange exchange) throws IOException {
-        System.out.println("\n📨 Request received: " + exchange.getRequestMethod());
+        TutorLog.info("request", "\n📨 Request received: " + exchange.getRequestMethod());
 
         if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-            System.out.println("✅ Handling OPTIONS (CORS preflight)");
+            TutorLog.info("request", "✅ Handling OPTIONS (CORS preflight)");
             sendCORS(exchange);
             exchange.sendResponseHeaders(200, -1);
             return;
         }
 
         if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-            System.out.println("❌ Wrong method: " + exchange.getRequestMethod());
+            TutorLog.info("request", "❌ Wrong method: " + exchange.getRequestMethod());
             sendResponse(exchange, 405, "ERROR: Only POST method supported");
             return;
         }
 
         // Read the raw message from request body
-        InputStream input = exchange.getRequestBody();
-        String body = new String(input.readAllBytes(), StandardCharsets.UTF_8);
-        System.out.println("📥 Received body: " + body);
+        String body = readBody(exchange);
+        TutorLog.info("request", () -> "📥 Received body: " + TutorLog.body(body));
 
         String userMessage = extractMessageSimple(body);
-        System.out.println("📝 Extracted message: '" + userMessage + "'");
+        TutorLog.info("request", () -> "📝 Extracted message: '" + TutorLog.body(userMessage) + "'");
 
         if (userMessage.isEmpty()) {
-            System.out.println("❌ Empty message received");
+            TutorLog.info("request", "❌ Empty message received");
             sendResponse(exchange, 400, "ERROR: Empty message");
             return;
         }
 
         // Check if question is about allowed subjects
-        String detectedSubject = detectSubject(userMessage);
-
-        String reply;
-        if (detectedSubject != null) {
-            System.out.println("✅ Allowed subject detected: " + detectedSubject);
-            System.out.println("🤖 Calling Gemini API...");
-            reply = fetchAIResponse(userMessage, detectedSubject);
-            System.out.println("✅ AI Response received: " + reply.substring(0, Math.min(50, reply.length())) + "...");
+        String detectedSubject = subjectFor(userMessage);
+
+        if (detectedSubject == null) {
+            TutorLog.info("request", "❌ Question outside allowed subjects");
+            sendReply(exchange, OFF_TOPIC_REPLY);
+            return;
+        }
+
+        TutorLog.info("request", "✅ Allowed subject detected: " + detectedSubject);
+
+        // A question someone already asked is answered from the cache, follow-up or not
+        String cacheKey = AnswerCache.key(detectedSubject, userMessage);
+        String sessionId = sessionId(body);
+        if (!bypassCache(exchange)) {
+            String cached = lookupCache(cacheKey, detectedSubject, userMessage);
+            if (cached != null) {
+                remember(sessionId, detectedSubject, userMessage, cached);
+                sendReply(exchange, cached);
+                return;
+            }
+        }
+
+        List<ConversationLog.Turn> history = followUpHistory(sessionId, detectedSubject);
+        CompletableFuture<String> answer;
+        if (history.isEmpty()) {
+            answer = askGemini(cacheKey, userMessage, detectedSubject, QUOTA_MAX_WAIT_MS);
         } else {
-            System.out.println("❌ Question outside allowed subjects");
-            reply = "❌ Sorry, I can only answer questions about: Java, C++, Data Structures, Operating Systems, DBMS, and Networks. Please ask about one of these topics.";
+            // An answer that builds on earlier turns is neither cached nor shared
+            TutorLog.info("request", "📜 Follow-up with " + history.size() + " earlier turns");
+            answer = fetchAIResponse(GeminiPayload.followUp(detectedSubject, history, userMessage), QUOTA_MAX_WAIT_MS);
         }
 
-        sendCORS(exchange);
-        sendResponse(exchange, 200, reply);
-        System.out.println("✅ Response sent successfully\n");
+        // The exchange is completed from the HTTP client's thread once Gemini answers
+        answer.whenComplete((reply, error) -> {
+            if (error != null) {
+                // Still answered, so the admission slot is released
+                TutorLog.error("request", "❌ Answer failed: " + error);
+                sendReply(exchange, 500, "ERROR: Could not answer the question");
+                return;
+            }
+            TutorLog.info("request", () -> "✅ AI Response received: " + reply.substring(0, Math.min(50, reply.length())) + "...");
+            remember(sessionId, detectedSubject, userMessage, reply);
+            if (BUSY_REPLY.equals(reply)) {
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(QUOTA.retryAfterSeconds()));
+                sendReply(exchange, 503, reply);
+            } else if (UNAVAILABLE_REPLY.equals(reply)) {
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(GEMINI.retryAfterSeconds()));
+                sendReply(exchange, 503, reply);
+            } else {
+                sendReply(exchange, reply);
+            }
+        });
     }
 
     /**
-     * Simple extraction without JSON library - finds text between quotes
+     * Reads the whole request body, timed as the body-read phase
+     * A failed read ends the request, so it is taken off the in-flight gauge here
      */
-    private static String extractMessageSimple(String body) {
+    private static String readBody(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
         try {
-            // Look for "message":"..." pattern
-            int messageStart = body.indexOf("\"message\"");
-            if (messageStart == -1)
-                return "";
+            return new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            requestFinished(exchange);
+            throw e;
+        } finally {
+            TutorMetrics.record(TutorMetrics.Phase.BODY_READ, start);
+        }
+    }
 
-            int firstQuote = body.indexOf("\"", messageStart + 9);
-            if (firstQuote == -1)
-                return "";
+    /**
+     * Serves GET /metrics in Prometheus text format
+     */
+    private static void handleMetrics(HttpExchange exchange) throws IOException {
+        if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+        byte[] bytes = TutorMetrics.render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
 
-            int secondQuote = body.indexOf("\"", firstQuote + 1);
-            if (secondQuote == -1)
-                return "";
+    /**
+     * Exposes the counters the caches, quota and logger already keep
+     */
+    private static void registerMetrics() {
+        TutorMetrics.registerCounter("aitutor_cache_hits_total", "Exact answer cache hits", ANSWER_CACHE::hits);
+        TutorMetrics.registerCounter("aitutor_cache_misses_total", "Exact answer cache misses", ANSWER_CACHE::misses);
+        TutorMetrics.registerCounter("aitutor_cache_evictions_total", "Answers evicted from the exact cache", ANSWER_CACHE::evictions);
+        TutorMetrics.registerGauge("aitutor_cache_entries", "Answers in the exact cache", ANSWER_CACHE::size);
+        if (DISK_CACHE != null) {
+            TutorMetrics.registerCounter("aitutor_disk_cache_hits_total", "Disk answer cache hits", DISK_CACHE::hits);
+            TutorMetrics.registerCounter("aitutor_disk_cache_misses_total", "Disk answer cache misses", DISK_CACHE::misses);
+            TutorMetrics.registerGauge("aitutor_disk_cache_entries", "Answers in the disk cache index", DISK_CACHE::size);
+            TutorMetrics.registerCounter("aitutor_disk_cache_corrupt_total", "Disk cache records that failed their checksum", DISK_CACHE::corrupt);
+            TutorMetrics.registerCounter("aitutor_disk_cache_dropped_total", "Answers not stored because the disk cache was full", DISK_CACHE::dropped);
+            TutorMetrics.registerCounter("aitutor_disk_cache_compactions_total", "Disk cache compactions", DISK_CACHE::compactions);
+            TutorMetrics.registerCounter("aitutor_disk_cache_evicted_total", "Oldest answers dropped by disk cache compaction", DISK_CACHE::evicted);
+        }
+        if (NEAR_CACHE != null) {
+            TutorMetrics.registerCounter("aitutor_near_cache_hits_total", "Near-duplicate cache hits", NEAR_CACHE::hits);
+            TutorMetrics.registerCounter("aitutor_near_cache_misses_total", "Near-duplicate cache misses", NEAR_CACHE::misses);
+        }
+        TutorMetrics.registerCounter("aitutor_admitted_total", "Questions let in by admission control", ADMISSION::admitted);
+        TutorMetrics.registerCounter("aitutor_shed_queue_full_total", "Questions turned away because the admission queue was full", ADMISSION::shedFull);
+        TutorMetrics.registerCounter("aitutor_shed_delay_total", "Questions shed for waiting too long in the admission queue", ADMISSION::shedDelay);
+        TutorMetrics.registerGauge("aitutor_admission_in_flight", "Questions holding an admission slot", ADMISSION::inFlight);
+        TutorMetrics.registerGauge("aitutor_admission_queued", "Questions waiting for an admission slot", ADMISSION::queued);
+        TutorMetrics.registerCounter("aitutor_coalesced_total", "Questions that joined an identical in-flight call", IN_FLIGHT::coalesced);
+        TutorMetrics.registerCounter("aitutor_quota_granted_total", "Quota tokens granted", QUOTA::granted);
+        TutorMetrics.registerCounter("aitutor_quota_rejected_total", "Questions turned away by the quota", QUOTA::rejected);
+        TutorMetrics.registerGauge("aitutor_quota_waiting", "Questions waiting for a quota token", QUOTA::waiting);
+        TutorMetrics.registerGauge("aitutor_upstream_limit", "Current adaptive limit on Gemini calls in flight", LIMITER::limit);
+        TutorMetrics.registerGauge("aitutor_upstream_limit_in_flight", "Gemini calls holding a concurrency slot", LIMITER::inFlight);
+        TutorMetrics.registerGauge("aitutor_upstream_limit_waiting", "Questions waiting for a Gemini concurrency slot", LIMITER::waiting);
+        TutorMetrics.registerCounter("aitutor_upstream_limit_rejected_total", "Questions turned away by the concurrency limit", LIMITER::rejected);
+        TutorMetrics.registerCounter("aitutor_upstream_limit_drops_total", "Gemini calls that cut the concurrency limit (429, 5xx, errors)", LIMITER::drops);
+        TutorMetrics.registerCounter("aitutor_upstream_retries_exhausted_total", "Retryable Gemini failures returned after running out of attempts, time or quota", RETRY::exhausted);
+        TutorMetrics.registerFamily("aitutor_circuit_state", "Gemini circuit breaker per model: 0 closed, 1 half-open, 2 open", "gauge", "model",
+                () -> breakerValues(breaker -> (long) breaker.state().ordinal()));
+        TutorMetrics.registerFamily("aitutor_circuit_opened_total", "Times a model's circuit breaker opened", "counter", "model",
+                () -> breakerValues(CircuitBreaker::opened));
+        TutorMetrics.registerFamily("aitutor_circuit_rejected_total", "Calls failed fast by an open circuit breaker", "counter", "model",
+                () -> breakerValues(CircuitBreaker::rejected));
+        if (HEDGER != null) {
+            TutorMetrics.registerCounter("aitutor_hedges_total", "Hedge calls sent for slow Gemini answers", HEDGER::hedges);
+            TutorMetrics.registerCounter("aitutor_hedge_wins_total", "Hedge calls that answered first", HEDGER::hedgeWins);
+            TutorMetrics.registerCounter("aitutor_hedges_skipped_total", "Hedges not sent for lack of budget or quota", HEDGER::skipped);
+            TutorMetrics.registerGauge("aitutor_hedge_delay_milliseconds", "Current wait before hedging a call", HEDGER::delayMillis);
+        }
+        if (HISTORY != null) {
+            TutorMetrics.registerGauge("aitutor_history_sessions", "Conversations with history in the index", HISTORY::sessions);
+            TutorMetrics.registerGauge("aitutor_history_segments", "History log segment files", HISTORY::segmentCount);
+            TutorMetrics.registerCounter("aitutor_history_appends_total", "Turns appended to the history log", HISTORY::appends);
+            TutorMetrics.registerCounter("aitutor_history_compactions_total", "History segments compacted", HISTORY::compacted);
+        }
+        TutorMetrics.registerCounter("aitutor_compressed_responses_total", "Replies sent gzip- or deflate-compressed", HttpCompression::compressed);
+        TutorMetrics.registerCounter("aitutor_compression_input_bytes_total", "Bytes of compressed replies before compression", HttpCompression::bytesIn);
+        TutorMetrics.registerCounter("aitutor_compression_output_bytes_total", "Bytes of compressed replies as sent", HttpCompression::bytesOut);
+        TutorMetrics.registerGauge("aitutor_ws_connections", "Open WebSocket connections", WebSocket::openSockets);
+        TutorMetrics.registerCounter("aitutor_ws_messages_received_total", "WebSocket messages received", WebSocket::messagesReceived);
+        TutorMetrics.registerCounter("aitutor_ws_messages_sent_total", "WebSocket messages sent", WebSocket::messagesSent);
+        TutorMetrics.registerCounter("aitutor_log_dropped_total", "Log lines dropped because the buffer was full", TutorLog::dropped);
+    }
 
-            return body.substring(firstQuote + 1, secondQuote);
-        } catch (Exception e) {
-            System.err.println("Error extracting message: " + e.getMessage());
-            return "";
+    /**
+     * The request's "sessionId" if history is enabled and the id is well-formed, else null
+     */
+    private static String sessionId(String body) {
+        return HISTORY != null ? ConversationLog.sessionId(extractField(body, "sessionId")) : null;
+    }
+
+    /**
+     * Detects the question's subject, timed and counted; null means off topic
+     */
+    private static String subjectFor(String userMessage) {
+        long detectStart = System.nanoTime();
+        String subject = detectSubject(userMessage);
+        TutorMetrics.record(TutorMetrics.Phase.SUBJECT_DETECTION, detectStart);
+        TutorMetrics.countSubject(subject);
+        return subject;
+    }
+
+    /**
+     * Earlier turns to send with a question that continues its conversation's subject
+     * A question on a new subject starts afresh, so its answer can be cached and shared
+     */
+    private static List<ConversationLog.Turn> followUpHistory(String sessionId, String subject) {
+        if (sessionId == null || !subject.equals(HISTORY.lastSubject(sessionId))) {
+            return Collections.emptyList();
         }
+        return HISTORY.lastTurns(sessionId, HISTORY_CONTEXT_TURNS);
     }
 
     /**
-     * Detects if the user message is about an allowed subject
-     * Returns the subject name if found, null otherwise
+     * Adds an answered question to the session's history; errors are not remembered
      */
-    private static String detectSubject(String message) {
-        String lowerMessage = message.toLowerCase();
+    private static void remember(String sessionId, String subject, String question, String reply) {
+        if (sessionId != null && !reply.startsWith(ERROR_PREFIX)) {
+            HISTORY.append(sessionId, subject, question, reply);
+        }
+    }
 
-        for (Map.Entry<String, String[]> entry : ALLOWED_SUBJECTS.entrySet()) {
-            String subject = entry.getKey();
-            String[] keywords = entry.getValue();
+    private static Map<String, Long> breakerValues(ToLongFunction<CircuitBreaker> value) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        GEMINI.breakers().forEach((model, breaker) -> values.put(model, value.applyAsLong(breaker)));
+        return values;
+    }
 
-            for (String keyword : keywords) {
-                if (lowerMessage.contains(keyword)) {
-                    return subject;
-                }
+    /**
+     * Looks a question up in the exact cache, the disk cache, then the near-duplicate cache
+     * Returns the cached answer or null, timing the lookup as the cache phase
+     */
+    private static String lookupCache(String cacheKey, String subject, String userMessage) {
+        long lookupStart = System.nanoTime();
+        String cached = ANSWER_CACHE.get(cacheKey);
+        boolean diskHit = false;
+        if (cached == null && DISK_CACHE != null) {
+            cached = DISK_CACHE.get(cacheKey);
+            if (cached != null) {
+                diskHit = true;
+                ANSWER_CACHE.put(cacheKey, cached);
             }
         }
-        return null;
+        boolean nearHit = false;
+        if (cached == null && NEAR_CACHE != null) {
+            cached = NEAR_CACHE.get(subject, userMessage);
+            nearHit = cached != null;
+        }
+        TutorMetrics.record(TutorMetrics.Phase.CACHE_LOOKUP, lookupStart);
+        if (diskHit) {
+            TutorLog.info("cache", "💽 Disk cache hit (" + DISK_CACHE.hits() + " hits / " + DISK_CACHE.misses() + " misses)");
+        } else if (nearHit) {
+            TutorLog.info("cache", "🧩 Near-duplicate hit (" + NEAR_CACHE.hits() + " hits / " + NEAR_CACHE.misses() + " misses)");
+        } else if (cached != null) {
+            TutorLog.info("cache", "💾 Cache hit (" + ANSWER_CACHE.hits() + " hits / " + ANSWER_CACHE.misses() + " misses)");
+        }
+        return cached;
+    }
+
+    /**
+     * Stores a fresh answer in every cache tier
+     */
+    private static void cacheAnswer(String cacheKey, String subject, String userMessage, String answer) {
+        ANSWER_CACHE.put(cacheKey, answer);
+        if (DISK_CACHE != null) {
+            DISK_CACHE.put(cacheKey, answer);
+        }
+        if (NEAR_CACHE != null) {
+            NEAR_CACHE.put(subject, userMessage, answer);
+        }
     }
 
     /**
-     * Fetches response from Gemini API with subject context
+     * Calls Gemini once per distinct in-flight question and caches good answers
+     * Concurrent duplicates share the same future instead of spending quota
      */
-    private static String fetchAIResponse(String userQuestion, String subject) {
+    private static CompletableFuture<String> askGemini(String cacheKey, String userMessage, String subject,
+            long maxWaitMillis) {
+        return IN_FLIGHT.run(cacheKey, () -> {
+            TutorLog.info("request", "🤖 Calling Gemini API...");
+            return fetchAIResponse(GeminiPayload.question(subject, userMessage), maxWaitMillis).thenApply(reply -> {
+                if (!reply.startsWith(ERROR_PREFIX)) {
+                    cacheAnswer(cacheKey, subject, userMessage, reply);
+                }
+                return reply;
+            });
+        });
+    }
+
+    /**
+     * True when the client sent Cache-Control: no-cache to force a fresh answer
+     * The fresh answer still replaces the cached one
+     */
+    private static boolean bypassCache(HttpExchange exchange) {
+        String cacheControl = exchange.getRequestHeaders().getFirst("Cache-Control");
+        return cacheControl != null && cacheControl.toLowerCase().contains("no-cache");
+    }
+
+    /**
+     * Sends a 200 reply with CORS headers, logging instead of throwing on I/O errors
+     */
+    private static void sendReply(HttpExchange exchange, String reply) {
+        sendReply(exchange, 200, reply);
+    }
+
+    private static void sendReply(HttpExchange exchange, int status, String reply) {
         try {
-            // CORRECT Gemini API endpoint - v1beta with gemini-pro model
-            String apiUrl = "https://generativelanguage.googleapis.com/v1beta/models/gemini-2.5-flash:generateContent?key="
-                    + API_KEY;
+            sendCORS(exchange);
+            sendResponse(exchange, status, reply);
+            TutorLog.info("request", "✅ Response sent successfully\n");
+        } catch (IOException e) {
+            TutorLog.error("request", "❌ Could not send response: " + e.getMessage());
+            exchange.close();
+        }
+    }
 
-            URL url = new URL(apiUrl);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setDoOutput(true);
+    /**
+     * Streams the answer to the browser as Server-Sent Events while Gemini generates it
+     * Events: "data: {"text":"..."}" per chunk, then "event: done" (or "event: error")
+     */
+    private static void handleStreamRequest(HttpExchange exchange) throws IOException {
+        TutorLog.info("stream", "\n📨 Stream request received: " + exchange.getRequestMethod());
 
-            // Build the prompt with subject context
-            String systemPrompt = "You are an AI tutor specializing in " + subject +
-                    ". Provide clear, educational explanations. Keep responses concise and helpful.";
+        if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
+            sendCORS(exchange);
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
 
-            String fullPrompt = systemPrompt + "\n\nQuestion: " + userQuestion;
+        if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "ERROR: Only POST method supported");
+            return;
+        }
 
-            // Build Gemini-specific JSON payload
-            String payload = buildGeminiPayload(fullPrompt);
+        String body = readBody(exchange);
+        String userMessage = extractMessageSimple(body);
+        TutorLog.info("stream", () -> "📝 Extracted message: '" + TutorLog.body(userMessage) + "'");
 
-            System.out.println("📤 Sending to Gemini: " + apiUrl);
-            System.out.println("📦 Payload: " + payload.substring(0, Math.min(100, payload.length())) + "...");
+        if (userMessage.isEmpty()) {
+            sendResponse(exchange, 400, "ERROR: Empty message");
+            return;
+        }
 
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(payload.getBytes(StandardCharsets.UTF_8));
+        sendCORS(exchange);
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        startChunkedResponse(exchange);
+        OutputStream out = exchange.getResponseBody();
+
+        streamAnswer(body, userMessage, bypassCache(exchange), new AnswerSink() {
+            @Override
+            public void text(String text) throws IOException {
+                writeEvent(out, null, "{\"text\":\"" + escapeJson(text) + "\"}");
             }
 
-            int responseCode = conn.getResponseCode();
-            System.out.println("📊 Response Code: " + responseCode);
+            @Override
+            public void finish(String event, String reply) throws IOException {
+                finishStream(exchange, out, event, reply);
+            }
 
-            if (responseCode == 429) {
-                return "⚠️ Rate limit exceeded (60 requests/min). Please wait a moment and try again.";
-            } else if (responseCode == 400) {
-                BufferedReader errorReader = new BufferedReader(new InputStreamReader(conn.getErrorStream()));
-                StringBuilder errorResponse = new StringBuilder();
-                String errorLine;
-                while ((errorLine = errorReader.readLine()) != null) {
-                    errorResponse.append(errorLine);
-                }
-                errorReader.close();
-                System.err.println("❌ 400 Error details: " + errorResponse.toString());
-                return "⚠️ Invalid request format. Error: " + errorResponse.toString();
-            } else if (responseCode == 403) {
-                return "⚠️ API key invalid. Get a new key at https://aistudio.google.com/app/apikey";
-            } else if (responseCode == 404) {
-                BufferedReader errorReader = new BufferedReader(new InputStreamReader(conn.getErrorStream()));
-                StringBuilder errorResponse = new StringBuilder();
-                String errorLine;
-                while ((errorLine = errorReader.readLine()) != null) {
-                    errorResponse.append(errorLine);
+            @Override
+            public void abort() {
+                exchange.close();
+                requestFinished(exchange);
+            }
+        });
+    }
+
+    /**
+     * Where a streamed answer goes: SSE on /ask/stream, WebSocket frames on /ws
+     */
+    private interface AnswerSink {
+        /**
+         * Sends the next piece of the answer
+         */
+        void text(String text) throws IOException;
+
+        /**
+         * Sends the closing "done" or "error" event and ends the question (requestFinished)
+         */
+        void finish(String event, String reply) throws IOException;
+
+        /**
+         * Runs next once the client can take more; straight away unless the sink can tell
+         */
+        default void whenReady(Runnable next) {
+            next.run();
+        }
+
+        /**
+         * Gives up on the client, ending the question unless finish already did
+         */
+        void abort();
+    }
+
+    /**
+     * Answers one admitted question into sink, from the cache or streamed from Gemini
+     * body is the request JSON, read for the optional "sessionId"
+     */
+    private static void streamAnswer(String body, String userMessage, boolean bypassCache, AnswerSink sink)
+            throws IOException {
+        String detectedSubject = subjectFor(userMessage);
+        if (detectedSubject == null) {
+            TutorLog.info("stream", "❌ Question outside allowed subjects");
+            sink.finish("error", OFF_TOPIC_REPLY);
+            return;
+        }
+
+        String cacheKey = AnswerCache.key(detectedSubject, userMessage);
+        String sessionId = sessionId(body);
+        if (!bypassCache) {
+            String cached = lookupCache(cacheKey, detectedSubject, userMessage);
+            if (cached != null) {
+                TutorLog.info("stream", "💾 Streaming cached answer");
+                remember(sessionId, detectedSubject, userMessage, cached);
+                try {
+                    sink.text(cached);
+                } finally {
+                    sink.finish("done", null);
                 }
-                errorReader.close();
-                System.err.println("❌ 404 Error details: " + errorResponse.toString());
-                return "⚠️ Model not found. Error: " + errorResponse.toString();
-            } else if (responseCode != 200) {
-                return "⚠️ API Error: " + responseCode;
+                return;
             }
+        }
 
-            BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-            StringBuilder response = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                response.append(line);
+        // Follow-up answers depend on earlier turns, so they are not cached
+        List<ConversationLog.Turn> history = followUpHistory(sessionId, detectedSubject);
+        TutorLog.info("stream", "🤖 Streaming from Gemini...");
+        GeminiPayload payload = GeminiPayload.followUp(detectedSubject, history, userMessage);
+        StreamRelay relay = new StreamRelay(sink);
+
+        // Successful responses are relayed line by line; error bodies are read whole
+        HttpResponse.BodyHandler<String> handler = info -> info.statusCode() == 200
+                ? HttpResponse.BodySubscribers.fromLineSubscriber(relay, StreamRelay::answer, StandardCharsets.UTF_8, null)
+                : HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8);
+
+        QUOTA.acquire(QUOTA_MAX_WAIT_MS).thenAccept(granted -> {
+            if (!granted) {
+                TutorLog.warn("stream", "⏳ Gemini quota exhausted, turning stream away");
+                try {
+                    sink.finish("error", BUSY_REPLY);
+                } catch (IOException e) {
+                    sink.abort();
+                }
+                return;
             }
-            reader.close();
 
-            System.out.println(
-                    "📨 Raw response: " + response.toString().substring(0, Math.min(200, response.length())) + "...");
+            long upstreamStart = System.nanoTime();
+            TutorMetrics.upstreamStarted();
+            // Only error statuses are retried: a stream that fails midway has already reached the student
+            CompletableFuture<HttpResponse<String>> stream = RETRY.run((attempt, remainingMillis) -> attempt == 0
+                    ? relay.track(GEMINI.send("streamGenerateContent?alt=sse", payload, handler))
+                    : retryWithQuota(remainingMillis, () -> relay.track(GEMINI.send("streamGenerateContent?alt=sse", payload, handler))),
+                    false);
+            stream.whenComplete((response, error) -> {
+                TutorMetrics.upstreamFinished();
+                TutorMetrics.record(TutorMetrics.Phase.UPSTREAM, upstreamStart);
+                try {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                        if (cause instanceof CancellationException) {
+                            TutorLog.info("stream", "👋 Student left, Gemini stream cancelled");
+                        } else {
+                            TutorLog.error("stream", "❌ Stream failed: " + cause);
+                        }
+                        sink.finish("error", cause instanceof GeminiClient.UnavailableException
+                                ? UNAVAILABLE_REPLY
+                                : "⚠️ Error: " + cause.getMessage());
+                    } else if (response.statusCode() != 200) {
+                        TutorMetrics.countUpstreamStatus(response.statusCode());
+                        sink.finish("error", describeUpstreamError(response.statusCode(), response.body()));
+                    } else if (relay.warning() != null) {
+                        TutorMetrics.countUpstreamStatus(200);
+                        sink.finish("error", relay.warning());
+                    } else {
+                        TutorMetrics.countUpstreamStatus(200);
+                        String answer = response.body();
+                        TutorLog.info("stream", "✅ Streamed " + answer.length() + " characters");
+                        if (!answer.trim().isEmpty()) {
+                            remember(sessionId, detectedSubject, userMessage, answer);
+                            if (history.isEmpty()) {
+                                cacheAnswer(cacheKey, detectedSubject, userMessage, answer);
+                            }
+                        }
+                        sink.finish("done", null);
+                    }
+                } catch (IOException e) {
+                    TutorLog.error("stream", "❌ Client went away during stream: " + e.getMessage());
+                    sink.abort();
+                }
+            });
+        });
+    }
 
-            return extractGeminiMessage(response.toString());
+    /**
+     * Answers a list of questions in one call: {"messages":["...","..."]}
+     * Up to BATCH_PARALLELISM questions are worked on at once. Results go back as
+     * NDJSON in request order, each line as soon as it and all earlier ones are done
+     */
+    private static void handleBatchRequest(HttpExchange exchange) throws IOException {
+        TutorLog.info("request", "\n📨 Batch request received: " + exchange.getRequestMethod());
 
-        } catch (Exception e) {
-            System.err.println("❌ Error fetching AI response: " + e.getMessage());
-            e.printStackTrace();
-            return "⚠️ Error: " + e.getMessage();
+        if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
+            sendCORS(exchange);
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+
+        if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "ERROR: Only POST method supported");
+            return;
+        }
+
+        List<String> messages = extractMessages(readBody(exchange));
+        if (messages.isEmpty()) {
+            sendResponse(exchange, 400, "ERROR: No messages");
+            return;
         }
+        if (messages.size() > BATCH_MAX_ITEMS) {
+            sendResponse(exchange, 400, "ERROR: At most " + BATCH_MAX_ITEMS + " messages per batch");
+            return;
+        }
+
+        TutorLog.info("request", "📚 Answering a batch of " + messages.size() + " questions, " + BATCH_PARALLELISM + " at a time");
+        sendCORS(exchange);
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        startChunkedResponse(exchange);
+        new BatchRun(exchange, messages, bypassCache(exchange)).start();
     }
 
     /**
-     * Builds JSON payload for Gemini API
-     * FIXED: Increased maxOutputTokens from 500 to 2048
+     * One /ask/batch call: starts questions as earlier ones finish and writes
+     * results in order, holding back any that finish ahead of their turn
      */
-    private static String buildGeminiPayload(String prompt) {
-        String escapedPrompt = escapeJson(prompt);
+    private static final class BatchRun {
+        private final HttpExchange exchange;
+        private final OutputStream out;
+        private final List<String> messages;
+        private final boolean bypassCache;
+        private final AtomicInteger nextToStart = new AtomicInteger();
+
+        // Guarded by this
+        private final String[] lines;
+        private int nextToWrite;
+        private boolean closed;
+
+        BatchRun(HttpExchange exchange, List<String> messages, boolean bypassCache) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.messages = messages;
+            this.bypassCache = bypassCache;
+            this.lines = new String[messages.size()];
+        }
+
+        void start() {
+            for (int i = 0; i < Math.min(BATCH_PARALLELISM, messages.size()); i++) {
+                startNext();
+            }
+        }
+
+        private void startNext() {
+            int index = nextToStart.getAndIncrement();
+            if (index >= messages.size() || isClosed()) {
+                return;
+            }
+            answer(index, messages.get(index)).whenComplete((line, error) -> {
+                if (error != null) {
+                    TutorLog.error("request", "❌ Batch question " + index + " failed: " + error);
+                    line = line(index, null, "error", "⚠️ Error: " + error.getMessage());
+                }
+                complete(index, line);
+                startNext();
+            });
+        }
+
+        /**
+         * Runs one question through the same steps as /ask and renders its NDJSON line
+         */
+        private CompletableFuture<String> answer(int index, String message) {
+            if (message.trim().isEmpty()) {
+                return CompletableFuture.completedFuture(line(index, null, "error", "ERROR: Empty message"));
+            }
+
+            long detectStart = System.nanoTime();
+            String subject = detectSubject(message);
+            TutorMetrics.record(TutorMetrics.Phase.SUBJECT_DETECTION, detectStart);
+            TutorMetrics.countSubject(subject);
+            if (subject == null) {
+                return CompletableFuture.completedFuture(line(index, null, "off_topic", OFF_TOPIC_REPLY));
+            }
+
+            String cacheKey = AnswerCache.key(subject, message);
+            if (!bypassCache) {
+                String cached = lookupCache(cacheKey, subject, message);
+                if (cached != null) {
+                    return CompletableFuture.completedFuture(line(index, subject, "ok", cached));
+                }
+            }
+
+            return askGemini(cacheKey, message, subject, BATCH_MAX_WAIT_MS).thenApply(reply -> {
+                String status = BUSY_REPLY.equals(reply) || UNAVAILABLE_REPLY.equals(reply) ? "busy" : reply.startsWith(ERROR_PREFIX) ? "error" : "ok";
+                return line(index, subject, status, reply);
+            });
+        }
 
-        return "{" +
-                "\"contents\":[{" +
-                "\"parts\":[{" +
-                "\"text\":\"" + escapedPrompt + "\"" +
-                "}]" +
-                "}]," +
-                "\"generationConfig\":{" +
-                "\"temperature\":0.7," +
-                "\"maxOutputTokens\":2048," +
-                "\"topP\":0.95," +
-                "\"topK\":40" +
-                "}" +
-                "}";
+        /**
+         * Records a finished question and writes every line that is now next in order
+         */
+        private synchronized void complete(int index, String line) {
+            lines[index] = line;
+            if (closed) {
+                return;
+            }
+            try {
+                long start = System.nanoTime();
+                while (nextToWrite < lines.length && lines[nextToWrite] != null) {
+                    out.write(lines[nextToWrite].getBytes(StandardCharsets.UTF_8));
+                    lines[nextToWrite++] = null;
+                }
+                out.flush();
+                if (nextToWrite == lines.length) {
+                    closed = true;
+                    out.close();
+                    requestFinished(exchange);
+                    TutorLog.info("request", "✅ Batch of " + lines.length + " questions sent");
+                }
+                TutorMetrics.record(TutorMetrics.Phase.RESPONSE_WRITE, start);
+            } catch (IOException e) {
+                // The instructor went away; questions not started yet are skipped
+                TutorLog.error("request", "❌ Client went away during batch: " + e.getMessage());
+                closed = true;
+                exchange.close();
+                requestFinished(exchange);
+            }
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private static String line(int index, String subject, String status, String reply) {
+            return "{\"index\":" + index
+                    + ",\"subject\":" + (subject == null ? "null" : "\"" + escapeJson(subject) + "\"")
+                    + ",\"status\":\"" + status + "\""
+                    + ",\"reply\":\"" + escapeJson(reply) + "\"}\n";
+        }
     }
 
     /**
-     * Escapes special characters for JSON
+     * Writes one Server-Sent Event and flushes it to the client
      */
-    private static String escapeJson(String text) {
-        return text.replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r")
-                .replace("\t", "\\t");
+    private static void writeEvent(OutputStream out, String event, String json) throws IOException {
+        StringBuilder frame = new StringBuilder();
+        if (event != null) {
+            frame.append("event: ").append(event).append('\n');
+        }
+        frame.append("data: ").append(json).append("\n\n");
+        out.write(frame.toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
     }
 
     /**
-     * Extracts AI message from Gemini response
-     * COMPLETELY REWRITTEN with better error handling
+     * Sends the closing event (with an optional reply) and ends the stream
      */
-    private static String extractGeminiMessage(String response) {
+    private static void finishStream(HttpExchange exchange, OutputStream out, String event, String reply)
+            throws IOException {
         try {
-            System.out.println("📦 FULL RESPONSE:");
-            System.out.println(response);
-            System.out.println("📦 END RESPONSE\n");
+            writeEvent(out, event, reply == null ? "{}" : "{\"reply\":\"" + escapeJson(reply) + "\"}");
+        } finally {
+            out.close();
+            requestFinished(exchange);
+        }
+    }
 
-            // Check for empty response
-            if (response == null || response.trim().isEmpty()) {
-                return "⚠️ Received empty response from API";
-            }
+    /**
+     * Relays Gemini's SSE lines to the browser as they arrive, one line at a time
+     * The next line is only asked for once the sink can take it, so a slow
+     * client slows the read from Gemini instead of piling up in memory
+     */
+    private static final class StreamRelay implements Flow.Subscriber<String> {
+        private final AnswerSink sink;
+        private final StringBuilder answer = new StringBuilder();
+        private Flow.Subscription subscription;
+        private String warning;
+        // The Gemini call being relayed
+        private volatile CompletableFuture<?> call;
+
+        StreamRelay(AnswerSink sink) {
+            this.sink = sink;
+        }
 
-            // Check for MAX_TOKENS error
-            if (response.contains("\"finishReason\":\"MAX_TOKENS\"") ||
-                    response.contains("\"finishReason\": \"MAX_TOKENS\"")) {
-                System.err.println("❌ Response truncated due to MAX_TOKENS");
-                return "⚠️ Response was too long and got cut off. Please ask a more specific question.";
-            }
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
 
-            // Check for other finish reasons that indicate problems
-            if (response.contains("\"finishReason\":\"SAFETY\"")) {
-                return "⚠️ Response blocked due to safety filters. Please rephrase your question.";
+        @Override
+        public void onNext(String line) {
+            if (line.startsWith("data:")) {
+                String text;
+                try {
+                    GeminiResponseParser.Result chunk = GeminiResponseParser.parse(new StringReader(line.substring(5)));
+                    text = chunk.text();
+                    TutorMetrics.countFinishReason(chunk.finishReason());
+                    if (chunk.hasError()) {
+                        warning = describeGeminiResult(chunk);
+                    } else if (finishReasonWarning(chunk.finishReason()) != null) {
+                        warning = finishReasonWarning(chunk.finishReason());
+                    }
+                } catch (IOException e) {
+                    TutorLog.warn("stream", "❌ Skipping malformed stream chunk: " + e.getMessage());
+                    text = "";
+                }
+                if (!text.isEmpty()) {
+                    answer.append(text);
+                    try {
+                        sink.text(text);
+                    } catch (IOException e) {
+                        // The student closed the tab, stop pulling from Gemini
+                        subscription.cancel();
+                        // A cancelled body never completes the call on its own, so nothing would finish the question
+                        CompletableFuture<?> current = call;
+                        if (current != null) {
+                            current.cancel(true);
+                        }
+                        return;
+                    }
+                }
             }
+            sink.whenReady(() -> subscription.request(1));
+        }
 
-            if (response.contains("\"finishReason\":\"RECITATION\"")) {
-                return "⚠️ Response blocked due to recitation concerns. Please rephrase your question.";
-            }
+        @Override
+        public void onError(Throwable throwable) {
+            // Reported through the response future
+        }
+
+        @Override
+        public void onComplete() {
+        }
 
-            // Check for API errors
-            if (response.contains("\"error\"")) {
-                System.err.println("❌ API returned an error");
+        /**
+         * Remembers call (the latest attempt) so it can be cancelled
+         */
+        <T> CompletableFuture<T> track(CompletableFuture<T> call) {
+            this.call = call;
+            return call;
+        }
+
+        String answer() {
+            return answer.toString();
+        }
 
-                // Try to extract error message
-                int errorMsgIndex = response.indexOf("\"message\"");
-                if (errorMsgIndex != -1) {
-                    int colonPos = response.indexOf(":", errorMsgIndex);
-                    int startQuote = response.indexOf("\"", colonPos);
-                    int endQuote = response.indexOf("\"", startQuote + 1);
-                    if (startQuote != -1 && endQuote != -1) {
-                        String errorMsg = response.substring(startQuote + 1, endQuote);
-                        return "⚠️ API Error: " + errorMsg;
+        String warning() {
+            return warning;
+        }
+    }
+
+    /**
+     * Upgrades GET /ws to a WebSocket that carries questions and streamed answers
+     * Needs HTTP_SERVER=nio; on the JDK server the page falls back to /ask/stream
+     */
+    private static void handleWebSocket(HttpExchange exchange) throws IOException {
+        TutorLog.info("ws", "\n🔌 WebSocket request from " + exchange.getRemoteAddress());
+        if (!WebSocket.accept(exchange, new ChatSocket(), HANDLER_EXECUTOR)) {
+            TutorLog.info("ws", "❌ WebSocket handshake refused (" + exchange.getResponseCode() + ")");
+            exchange.close();
+        }
+    }
+
+    /**
+     * One browser tab's /ws connection
+     * Client messages: {"id":"...","message":"...","sessionId":"..."}. Each answer
+     * comes back as {"id","type":"text","text"} frames and ends with
+     * {"id","type":"done"} or {"id","type":"error","reply"}. Each question goes
+     * through admission like an /ask/stream request; with WS_MAX_PENDING
+     * unanswered, the socket stops reading until one finishes.
+     */
+    private static final class ChatSocket implements WebSocket.Listener {
+        // Guarded by this, so pause and resume reach the event loop in the order they were decided
+        private int pending;
+
+        @Override
+        public void onOpen(WebSocket socket) {
+            TutorLog.info("ws", "✅ WebSocket open");
+        }
+
+        @Override
+        public void onText(WebSocket socket, String text) {
+            String id = extractField(text, "id");
+            String userMessage = extractMessageSimple(text);
+            TutorLog.info("ws", () -> "📝 Extracted message: '" + TutorLog.body(userMessage) + "'");
+            questionStarted(socket);
+            ADMISSION.submit(() -> {
+                // Balanced by the sink's finish or abort
+                TutorMetrics.requestStarted();
+                AnswerSink sink = new SocketSink(socket, id, () -> questionFinished(socket));
+                try {
+                    if (userMessage.isEmpty()) {
+                        sink.finish("error", "ERROR: Empty message");
+                    } else {
+                        streamAnswer(text, userMessage, false, sink);
                     }
+                } catch (IOException | RuntimeException e) {
+                    TutorLog.error("ws", "❌ Question failed: " + e.getMessage(), e);
+                    sink.abort();
                 }
-                return "⚠️ API returned an error. Check console for details.";
+            }, retryAfterSeconds -> {
+                TutorLog.warn("ws", "🚦 Overloaded (" + ADMISSION.inFlight() + " in flight, "
+                        + ADMISSION.queued() + " waiting), shedding a question");
+                socket.sendText(SocketSink.frame(id, "error", BUSY_REPLY));
+                questionFinished(socket);
+            });
+        }
+
+        @Override
+        public void onClose(WebSocket socket) {
+            TutorLog.info("ws", "👋 WebSocket closed");
+        }
+
+        private synchronized void questionStarted(WebSocket socket) {
+            if (++pending == WS_MAX_PENDING) {
+                socket.pauseReading(true);
+            }
+        }
+
+        private synchronized void questionFinished(WebSocket socket) {
+            if (pending-- == WS_MAX_PENDING) {
+                socket.pauseReading(false);
             }
+        }
+    }
 
-            // Look for "text" field in the response
-            int textIndex = response.indexOf("\"text\"");
+    /**
+     * Sends one question's answer as WebSocket frames tagged with its id
+     */
+    private static final class SocketSink implements AnswerSink {
+        private final WebSocket socket;
+        private final String id;
+        private final Runnable onFinish;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        SocketSink(WebSocket socket, String id, Runnable onFinish) {
+            this.socket = socket;
+            this.id = id;
+            this.onFinish = onFinish;
+        }
 
-            if (textIndex == -1) {
-                // No text field found - check if parts array is empty
-                if (response.contains("\"parts\":[]") || response.contains("\"parts\": []")) {
-                    return "⚠️ API returned empty content. The response may have been filtered or truncated.";
-                }
+        @Override
+        public void text(String text) throws IOException {
+            if (!socket.sendText("{\"id\":\"" + escapeJson(id) + "\",\"type\":\"text\",\"text\":\"" + escapeJson(text) + "\"}")) {
+                throw new IOException("WebSocket closed");
+            }
+        }
 
-                System.err.println("❌ Could not find 'text' field in response");
-                String snippet = response.length() > 300 ? response.substring(0, 300) + "..." : response;
-                return "⚠️ Unexpected response format: " + snippet;
+        @Override
+        public void finish(String event, String reply) {
+            try {
+                // A closed socket has nobody left to tell
+                socket.sendText(frame(id, event, reply));
+            } finally {
+                finishQuestion();
             }
+        }
+
+        /**
+         * Holds Gemini's next chunk back until the client has read most of the last ones
+         */
+        @Override
+        public void whenReady(Runnable next) {
+            socket.whenWritable(next);
+        }
 
-            System.out.println("✅ Found 'text' field at position: " + textIndex);
+        @Override
+        public void abort() {
+            try {
+                socket.close(WebSocket.INTERNAL_ERROR, "Answer failed");
+            } finally {
+                finishQuestion();
+            }
+        }
 
-            // Find the colon after "text"
-            int colonIndex = response.indexOf(":", textIndex);
-            if (colonIndex == -1) {
-                return "⚠️ Malformed JSON response";
+        /**
+         * Frees the question's admission slot and socket credit, once
+         */
+        private void finishQuestion() {
+            if (finished.compareAndSet(false, true)) {
+                requestFinished();
+                onFinish.run();
             }
+        }
+
+        static String frame(String id, String type, String reply) {
+            return "{\"id\":\"" + escapeJson(id) + "\",\"type\":\"" + type + "\""
+                    + (reply == null ? "" : ",\"reply\":\"" + escapeJson(reply) + "\"") + "}";
+        }
+    }
+
+    /**
+     * Simple extraction without JSON library - finds text between quotes
+     */
+    static String extractMessageSimple(String body) {
+        return extractField(body, "message");
+    }
+
+    /**
+     * Returns the string value of a top-level field, "" if it is missing
+     */
+    static String extractField(String body, String name) {
+        try {
+            // Look for "name":"..." pattern
+            String key = "\"" + name + "\"";
+            int messageStart = body.indexOf(key);
+            if (messageStart == -1)
+                return "";
+
+            int firstQuote = body.indexOf("\"", messageStart + key.length());
+            if (firstQuote == -1)
+                return "";
+
+            int secondQuote = body.indexOf("\"", firstQuote + 1);
+            if (secondQuote == -1)
+                return "";
+
+            return body.substring(firstQuote + 1, secondQuote);
+        } catch (Exception e) {
+            TutorLog.error("request", "Error extracting message: " + e.getMessage());
+            return "";
+        }
+    }
 
-            // Skip whitespace and find opening quote
-            int quoteIndex = -1;
-            for (int i = colonIndex + 1; i < response.length(); i++) {
-                char c = response.charAt(i);
-                if (c == '"') {
-                    quoteIndex = i;
-                    break;
-                } else if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
-                    System.err.println("❌ Expected quote but found: " + c);
-                    return "⚠️ Malformed JSON response";
+    /**
+     * Reads the "messages" array of a batch request body
+     * Unlike extractMessageSimple this decodes escapes, since instructors paste
+     * whole assignment sheets with quotes and line breaks in them
+     */
+    static List<String> extractMessages(String body) {
+        List<String> messages = new ArrayList<>();
+        int key = body.indexOf("\"messages\"");
+        int i = key == -1 ? -1 : body.indexOf('[', key + 10);
+        if (i == -1) {
+            return messages;
+        }
+        StringBuilder current = new StringBuilder();
+        for (i++; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == ']') {
+                break;
+            }
+            if (c != '"') {
+                continue; // commas and whitespace between strings
+            }
+            current.setLength(0);
+            for (i++; i < body.length() && body.charAt(i) != '"'; i++) {
+                char ch = body.charAt(i);
+                if (ch != '\\' || i + 1 >= body.length()) {
+                    current.append(ch);
+                    continue;
+                }
+                char escaped = body.charAt(++i);
+                switch (escaped) {
+                    case 'n':
+                        current.append('\n');
+                        break;
+                    case 't':
+                        current.append('\t');
+                        break;
+                    case 'r':
+                        current.append('\r');
+                        break;
+                    case 'b':
+                        current.append('\b');
+                        break;
+                    case 'f':
+                        current.append('\f');
+                        break;
+                    case 'u':
+                        if (i + 4 < body.length()) {
+                            try {
+                                current.append((char) Integer.parseInt(body.substring(i + 1, i + 5), 16));
+                                i += 4;
+                                break;
+                            } catch (NumberFormatException e) {
+                                // not a valid escape, keep the raw character
+                            }
+                        }
+                        current.append(escaped);
+                        break;
+                    default:
+                        current.append(escaped); // \" \\ and \/
+                        break;
                 }
             }
+            messages.add(current.toString());
+        }
+        return messages;
+    }
 
-            if (quoteIndex == -1) {
-                return "⚠️ Malformed JSON response - no opening quote";
-            }
-
-            // Extract content between quotes, handling escapes
-            StringBuilder content = new StringBuilder();
-            boolean escaped = false;
-
-            for (int i = quoteIndex + 1; i < response.length(); i++) {
-                char c = response.charAt(i);
-
-                if (escaped) {
-                    switch (c) {
-                        case 'n':
-                            content.append('\n');
-                            break;
-                        case 'r':
-                            content.append('\r');
-                            break;
-                        case 't':
-                            content.append('\t');
-                            break;
-                        case '\\':
-                            content.append('\\');
-                            break;
-                        case '"':
-                            content.append('"');
-                            break;
-                        case '/':
-                            content.append('/');
-                            break;
-                        case 'b':
-                            content.append('\b');
-                            break;
-                        case 'f':
-                            content.append('\f');
-                            break;
-                        default:
-                            content.append(c);
-                            break;
+    /**
+     * Detects if the user message is about an allowed subject
+     * Returns the subject with the most keyword hits, null if none
+     */
+    static String detectSubject(String message) {
+        return SUBJECT_MATCHER.detect(message);
+    }
+
+    /**
+     * Sends a generateContent payload to Gemini and maps the result to a reply
+     * Completes asynchronously so the handler thread never waits on the socket;
+     * gives BUSY_REPLY if no quota token or concurrency slot frees up within maxWaitMillis
+     */
+    private static CompletableFuture<String> fetchAIResponse(GeminiPayload payload, long maxWaitMillis) {
+        TutorLog.info("gemini", "📤 Sending to Gemini: " + GEMINI.endpoint("generateContent"));
+        TutorLog.debug("gemini", () -> "📦 Payload: " + TutorLog.body(payload.toString()));
+
+        // The body is parsed as it arrives, on a handler thread rather than the client's own
+        long upstreamStart = System.nanoTime();
+        TutorMetrics.upstreamStarted();
+        // Every attempt, retries included, takes its own concurrency slot and quota token
+        return RETRY.run((attempt, remainingMillis) -> sendGenerate(payload, attempt == 0 ? maxWaitMillis : remainingMillis), true)
+                .thenApplyAsync(response -> response == null ? BUSY_REPLY : handleGeminiResponse(response), HANDLER_EXECUTOR)
+                .whenComplete((reply, error) -> {
+                    TutorMetrics.upstreamFinished();
+                    TutorMetrics.record(TutorMetrics.Phase.UPSTREAM, upstreamStart);
+                })
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (cause instanceof GeminiClient.UnavailableException) {
+                        TutorLog.warn("gemini", "🔌 " + cause.getMessage());
+                        return UNAVAILABLE_REPLY;
                     }
-                    escaped = false;
-                } else if (c == '\\') {
-                    escaped = true;
-                } else if (c == '"') {
-                    // Found closing quote
-                    String result = content.toString();
-
-                    if (result.trim().isEmpty()) {
-                        return "⚠️ API returned empty text content";
+                    if (cause instanceof HttpTimeoutException) {
+                        TutorLog.error("gemini", "❌ Gemini request timed out: " + cause.getMessage());
+                        return "⚠️ The AI took too long to respond. Please try again.";
                     }
+                    String message = cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+                    TutorLog.error("gemini", "❌ Error fetching AI response: " + message, cause);
+                    return "⚠️ Error: " + message;
+                });
+    }
 
-                    System.out.println("✅ Successfully extracted " + result.length() + " characters");
-                    System.out.println("✅ Preview: " + result.substring(0, Math.min(100, result.length())));
-                    return result;
-                } else {
-                    content.append(c);
+    /**
+     * Sends generateContent once LIMITER has a slot and QUOTA a token, hedged when HEDGE_ENABLED=true
+     * The slot comes first, so a call the limiter turns away never spends a quota token.
+     * Completes with null if either does not free up within maxWaitMillis
+     */
+    private static CompletableFuture<HttpResponse<InputStream>> sendGenerate(GeminiPayload payload, long maxWaitMillis) {
+        long deadline = System.nanoTime() + maxWaitMillis * 1_000_000L;
+        return LIMITER.acquire(maxWaitMillis).thenCompose(permitted -> {
+            if (!permitted) {
+                TutorLog.warn("gemini", "🚧 Gemini concurrency limit reached (" + LIMITER.limit() + " in flight, "
+                        + LIMITER.waiting() + " waiting), turning request away");
+                return CompletableFuture.completedFuture(null);
+            }
+            return QUOTA.acquire(Math.max(0, (deadline - System.nanoTime()) / 1_000_000L)).thenCompose(granted -> {
+                if (!granted) {
+                    LIMITER.onIgnored();
+                    TutorLog.warn("gemini", "⏳ Gemini quota exhausted (" + QUOTA.waiting() + " waiting), turning request away");
+                    return CompletableFuture.completedFuture(null);
                 }
+                return callGemini(payload);
+            });
+        });
+    }
+
+    /**
+     * Makes the call on an already held LIMITER slot and feeds its outcome back
+     */
+    private static CompletableFuture<HttpResponse<InputStream>> callGemini(GeminiPayload payload) {
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<InputStream>> call;
+        try {
+            call = HEDGER != null
+                    ? HEDGER.send("generateContent", payload)
+                    : GEMINI.send("generateContent", payload, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (RuntimeException e) {
+            LIMITER.onIgnored();
+            throw e;
+        }
+        // The round trip ends at the headers; a 429, 5xx or failed call is a sign of overload
+        call.whenComplete((response, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof CancellationException) {
+                LIMITER.onIgnored();
+            } else {
+                LIMITER.onSample(System.nanoTime() - start,
+                        cause != null || response.statusCode() == 429 || response.statusCode() >= 500);
             }
+        });
+        return call;
+    }
 
-            return "⚠️ Incomplete JSON response - no closing quote found";
+    /**
+     * Starts a retry once it gets a quota token, or completes with null if none frees up in time
+     */
+    private static <T> CompletableFuture<HttpResponse<T>> retryWithQuota(long remainingMillis,
+            Supplier<CompletableFuture<HttpResponse<T>>> call) {
+        return QUOTA.acquire(Math.max(0, remainingMillis))
+                .thenCompose(granted -> granted ? call.get() : CompletableFuture.completedFuture(null));
+    }
 
-        } catch (Exception e) {
-            System.err.println("❌ Exception parsing response: " + e.getMessage());
-            e.printStackTrace();
+    /**
+     * Maps the Gemini HTTP status to a reply for the student
+     */
+    private static String handleGeminiResponse(HttpResponse<InputStream> response) {
+        int responseCode = response.statusCode();
+        TutorLog.info("gemini", "📊 Response Code: " + responseCode);
+        TutorMetrics.countUpstreamStatus(responseCode);
+
+        try (InputStream body = HttpCompression.decoded(response)) {
+            if (responseCode != 200) {
+                return describeUpstreamError(responseCode, new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            return extractGeminiMessage(body);
+        } catch (IOException e) {
+            TutorLog.error("gemini", "❌ Error reading response: " + e.getMessage());
+            return "⚠️ Error: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Turns a non-200 Gemini status and its error body into a reply for the student
+     */
+    private static String describeUpstreamError(int responseCode, String errorBody) {
+        if (responseCode == 429) {
+            return "⚠️ Rate limit exceeded (60 requests/min). Please wait a moment and try again.";
+        } else if (responseCode == 400) {
+            TutorLog.error("gemini", "❌ 400 Error details: " + TutorLog.body(errorBody));
+            return "⚠️ Invalid request format. Error: " + errorBody;
+        } else if (responseCode == 403) {
+            return "⚠️ API key invalid. Get a new key at https://aistudio.google.com/app/apikey";
+        } else if (responseCode == 404) {
+            TutorLog.error("gemini", "❌ 404 Error details: " + TutorLog.body(errorBody));
+            return "⚠️ Model not found. Error: " + errorBody;
+        }
+        return "⚠️ API Error: " + responseCode;
+    }
+
+    /**
+     * Escapes special characters for JSON
+     */
+    static String escapeJson(String text) {
+        return text.replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n")
+                .replace("\r", "\\r")
+                .replace("\t", "\\t");
+    }
+
+    /**
+     * Extracts AI message from Gemini response
+     * Parses the body in one streaming pass instead of scanning a String
+     */
+    static String extractGeminiMessage(InputStream response) {
+        try {
+            GeminiResponseParser.Result result = GeminiResponseParser.parse(response);
+            TutorMetrics.countFinishReason(result.finishReason());
+            return describeGeminiResult(result);
+        } catch (IOException e) {
+            TutorLog.error("gemini", "❌ Exception parsing response: " + e.getMessage());
             return "⚠️ Error parsing response: " + e.getMessage();
         }
     }
 
+    /**
+     * Turns a parsed Gemini response into the reply for the student
+     */
+    private static String describeGeminiResult(GeminiResponseParser.Result result) {
+        // Check for empty response
+        if (result.empty) {
+            return "⚠️ Received empty response from API";
+        }
+
+        // Check for API errors
+        if (result.hasError()) {
+            TutorLog.error("gemini", "❌ API returned an error: " + result.errorCode + " " + result.errorStatus);
+            return result.errorMessage != null
+                    ? "⚠️ API Error: " + result.errorMessage
+                    : "⚠️ API returned an error. Check console for details.";
+        }
+
+        if (result.totalTokens != -1) {
+            TutorLog.info("gemini", "🔢 Tokens: " + result.promptTokens + " prompt + " + result.candidatesTokens
+                    + " answer = " + result.totalTokens);
+        }
+
+        // Check for finish reasons that indicate problems
+        String warning = finishReasonWarning(result.finishReason());
+        if (warning == null && result.blockReason != null) {
+            warning = "⚠️ Response blocked due to safety filters. Please rephrase your question.";
+        }
+        if (warning != null) {
+            TutorLog.error("gemini", "❌ Generation stopped: " + result.finishReason());
+            return warning;
+        }
+
+        if (!result.sawText) {
+            if (result.sawParts) {
+                return "⚠️ API returned empty content. The response may have been filtered or truncated.";
+            }
+            TutorLog.error("gemini", "❌ Could not find 'text' field in response");
+            return "⚠️ Unexpected response format: no text in response";
+        }
+
+        String text = result.text();
+        if (text.trim().isEmpty()) {
+            return "⚠️ API returned empty text content";
+        }
+
+        TutorLog.info("gemini", "✅ Successfully extracted " + text.length() + " characters");
+        TutorLog.debug("gemini", () -> "✅ Preview: " + TutorLog.body(text));
+        return text;
+    }
+
+    /**
+     * Returns the reply for a finishReason that means the answer is unusable, or null
+     */
+    private static String finishReasonWarning(String finishReason) {
+        if ("MAX_TOKENS".equals(finishReason)) {
+            return "⚠️ Response was too long and got cut off. Please ask a more specific question.";
+        } else if ("SAFETY".equals(finishReason)) {
+            return "⚠️ Response blocked due to safety filters. Please rephrase your question.";
+        } else if ("RECITATION".equals(finishReason)) {
+            return "⚠️ Response blocked due to recitation concerns. Please rephrase your question.";
+        }
+        return null;
+    }
+
     /**
      * Sends response back to client
+     * This ends the request, so it is also where the in-flight gauge drops
+     */
+    static void sendResponse(HttpExchange exchange, int status, String response) throws IOException {
+        long start = System.nanoTime();
+        try {
+            writeResponse(exchange, status, response);
+        } finally {
+            TutorMetrics.record(TutorMetrics.Phase.RESPONSE_WRITE, start);
+            requestFinished(exchange);
+        }
+    }
+
+    /**
+     * Sends 200 headers for a streamed body
+     * If that fails the question ends here, so it is finished here like in readBody
      */
-    private static void sendResponse(HttpExchange exchange, int status, String response) throws IOException {
+    private static void startChunkedResponse(HttpExchange exchange) throws IOException {
+        try {
+            // Length 0 switches the response to chunked transfer encoding
+            exchange.sendResponseHeaders(200, 0);
+        } catch (IOException e) {
+            requestFinished(exchange);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes {"reply": response} and closes the exchange
+     * Long replies are gzip- or deflate-compressed when the client accepts it
+     */
+    private static void writeResponse(HttpExchange exchange, int status, String response) throws IOException {
         // Wrap response in simple format for frontend
         String wrappedResponse = "{\"reply\":\"" + escapeJson(response) + "\"}";
         byte[] bytes = wrappedResponse.getBytes(StandardCharsets.UTF_8);
 
+        if (HttpCompression.enabled()) {
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            String encoding = HttpCompression.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            byte[] compressed = HttpCompression.compress(bytes, encoding);
+            if (compressed != null) {
+                exchange.getResponseHeaders().set("Content-Encoding", encoding);
+                bytes = compressed;
+            }
+        }
+
         exchange.sendResponseHeaders(status, bytes.length);
         OutputStream os = exchange.getResponseBody();
         os.write(bytes);
@@ -489,6 +1585,6 @@ public class AITutorServer {
         Headers headers = exchange.getResponseHeaders();
         headers.add("Access-Control-Allow-Origin", "*");
         headers.add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
-        headers.add("Access-Control-Allow-Headers", "Content-Type");
+        headers.add("Access-Control-Allow-Headers", "Content-Type, Cache-Control");
     }
 }
\ No newline at end of file
@@ -0,0 +1,240 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * Admission control in front of the question handlers
+ * Up to maxInFlight questions are handled at once; the rest wait in a
+ * bounded FIFO queue. Waiting time is managed CoDel-style (RFC 8289): once
+ * every question leaving the queue has waited longer than the target for a
+ * whole interval, questions are shed at the head with 503 at a rate that
+ * rises until the wait drops below the target again. A full queue sheds at
+ * the door, and a sweep sheds anything that waited past maxWait. Shedding
+ * early keeps the admitted questions fast instead of letting every one
+ * time out together.
+ *
+ * Settings: ADMISSION_MAX_IN_FLIGHT, ADMISSION_QUEUE_SIZE, ADMISSION_TARGET_MS,
+ * ADMISSION_INTERVAL_MS, ADMISSION_MAX_WAIT_MS
+ */
+final class AdmissionController {
+
+    private final int maxInFlight;
+    private final int maxQueue;
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final long maxWaitNanos;
+    private final Executor executor;
+    private final ScheduledExecutorService sweeper;
+
+    // Guarded by this
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private int inFlight;
+    private long firstAboveTime;
+    private long dropNext;
+    private int dropCount;
+    private boolean dropping;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder shedFull = new LongAdder();
+    private final LongAdder shedDelay = new LongAdder();
+
+    AdmissionController(int maxInFlight, int maxQueue, long targetMillis, long intervalMillis, long maxWaitMillis,
+            Executor executor) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxQueue = Math.max(0, maxQueue);
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.executor = executor;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "admission-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepMillis = Math.max(10, Math.min(intervalMillis, maxWaitMillis) / 4);
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static AdmissionController fromConfig(Executor executor) {
+        return new AdmissionController(
+                TutorConfig.getInt("ADMISSION_MAX_IN_FLIGHT", 256),
+                TutorConfig.getInt("ADMISSION_QUEUE_SIZE", 256),
+                TutorConfig.getLong("ADMISSION_TARGET_MS", 200),
+                TutorConfig.getLong("ADMISSION_INTERVAL_MS", 1_000),
+                TutorConfig.getLong("ADMISSION_MAX_WAIT_MS", 5_000),
+                executor);
+    }
+
+    /**
+     * Runs the question now, queues it, or sheds it
+     * handle runs on the caller's thread when admitted straight away, otherwise
+     * on the executor; shed gets the Retry-After seconds to send with 503.
+     * Every handled question must be followed by exactly one release()
+     */
+    void submit(Runnable handle, LongConsumer shed) {
+        long retryAfter;
+        synchronized (this) {
+            if (inFlight < maxInFlight && queue.isEmpty()) {
+                inFlight++;
+                admitted.increment();
+                retryAfter = -1;
+            } else if (queue.size() < maxQueue) {
+                queue.addLast(new Waiter(handle, shed, System.nanoTime()));
+                return;
+            } else {
+                shedFull.increment();
+                retryAfter = retryAfterSeconds(System.nanoTime());
+            }
+        }
+        if (retryAfter < 0) {
+            handle.run();
+        } else {
+            shed.accept(retryAfter);
+        }
+    }
+
+    /**
+     * Frees the slot of a finished question and lets the next waiting one in
+     */
+    void release() {
+        List<Waiter> shed = new ArrayList<>();
+        Waiter next;
+        long retryAfter;
+        synchronized (this) {
+            inFlight--;
+            long now = System.nanoTime();
+            next = inFlight < maxInFlight ? dequeue(now, shed) : null;
+            if (next != null) {
+                inFlight++;
+                admitted.increment();
+            }
+            retryAfter = retryAfterSeconds(now);
+        }
+        for (Waiter waiter : shed) {
+            waiter.shed.accept(retryAfter);
+        }
+        if (next != null) {
+            executor.execute(next.handle);
+        }
+    }
+
+    long admitted() {
+        return admitted.sum();
+    }
+
+    long shedFull() {
+        return shedFull.sum();
+    }
+
+    long shedDelay() {
+        return shedDelay.sum();
+    }
+
+    synchronized long inFlight() {
+        return inFlight;
+    }
+
+    synchronized long queued() {
+        return queue.size();
+    }
+
+    /**
+     * Takes the next question to run, shedding heads as the CoDel control law says
+     */
+    private Waiter dequeue(long now, List<Waiter> shed) {
+        Waiter head = queue.pollFirst();
+        if (head == null) {
+            dropping = false;
+            firstAboveTime = 0;
+            return null;
+        }
+        boolean okToDrop = aboveTarget(now - head.enqueued, now);
+        if (dropping) {
+            if (!okToDrop) {
+                dropping = false;
+            }
+            while (dropping && now - dropNext >= 0) {
+                shedDelay.increment();
+                shed.add(head);
+                dropCount++;
+                head = queue.pollFirst();
+                if (head == null || !aboveTarget(now - head.enqueued, now)) {
+                    dropping = false;
+                } else {
+                    dropNext = controlLaw(dropNext);
+                }
+            }
+        } else if (okToDrop) {
+            shedDelay.increment();
+            shed.add(head);
+            head = queue.pollFirst();
+            dropping = true;
+            // Start near the previous drop rate if the last dropping spell ended recently
+            dropCount = dropCount > 2 && now - dropNext < 16 * intervalNanos ? dropCount - 2 : 1;
+            dropNext = controlLaw(now);
+        }
+        return head;
+    }
+
+    private boolean aboveTarget(long sojourn, long now) {
+        if (sojourn < targetNanos) {
+            firstAboveTime = 0;
+            return false;
+        }
+        if (firstAboveTime == 0) {
+            firstAboveTime = now + intervalNanos;
+            return false;
+        }
+        return now - firstAboveTime >= 0;
+    }
+
+    private long controlLaw(long from) {
+        return from + (long) (intervalNanos / Math.sqrt(dropCount));
+    }
+
+    /**
+     * Sheds questions that waited past maxWait, which CoDel alone would only see on the next release
+     */
+    private void sweep() {
+        List<Waiter> expired = new ArrayList<>();
+        long retryAfter;
+        synchronized (this) {
+            long now = System.nanoTime();
+            while (!queue.isEmpty() && now - queue.peekFirst().enqueued > maxWaitNanos) {
+                expired.add(queue.pollFirst());
+            }
+            retryAfter = retryAfterSeconds(now);
+        }
+        for (Waiter waiter : expired) {
+            shedDelay.increment();
+            waiter.shed.accept(retryAfter);
+        }
+    }
+
+    /**
+     * About how long the current queue takes to clear, at least 1 second
+     */
+    private long retryAfterSeconds(long now) {
+        Waiter head = queue.peekFirst();
+        long waited = head == null ? 0 : now - head.enqueued;
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(Math.max(waited, targetNanos)) + 1);
+    }
+
+    private static final class Waiter {
+        final Runnable handle;
+        final LongConsumer shed;
+        final long enqueued;
+
+        Waiter(Runnable handle, LongConsumer shed, long enqueued) {
+            this.handle = handle;
+            this.shed = shed;
+            this.enqueued = enqueued;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-memory cache of answers keyed by (subject, normalized question)
+ * Split into independently locked segments so concurrent students rarely contend
+ */
+final class AnswerCache {
+
+    enum Eviction {
+        LRU, // evict the least recently read entry
+        TTL // evict the oldest written entry, reads do not refresh it
+    }
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttlNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    AnswerCache(int maxEntries, long ttlSeconds, Eviction eviction) {
+        this.ttlNanos = ttlSeconds * 1_000_000_000L;
+        // A size of 0 disables caching: every put is evicted straight away
+        int perSegment = Math.max(0, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment, eviction == Eviction.LRU);
+        }
+    }
+
+    /**
+     * Creates a cache from CACHE_MAX_ENTRIES, CACHE_TTL_SECONDS and CACHE_EVICTION
+     */
+    static AnswerCache fromConfig() {
+        String policy = TutorConfig.get("CACHE_EVICTION", "lru");
+        Eviction eviction = "ttl".equalsIgnoreCase(policy) ? Eviction.TTL : Eviction.LRU;
+        return new AnswerCache(
+                TutorConfig.getInt("CACHE_MAX_ENTRIES", 10_000),
+                TutorConfig.getLong("CACHE_TTL_SECONDS", 24 * 60 * 60),
+                eviction);
+    }
+
+    /**
+     * Builds the cache key from the detected subject and the normalized question
+     */
+    static String key(String subject, String question) {
+        return subject + '\u0000' + normalizeQuestion(question);
+    }
+
+    /**
+     * Case-folds, strips punctuation and collapses whitespace
+     * '+' and '#' are kept because "c++" and "c#" mean something different from "c"
+     */
+    static String normalizeQuestion(String question) {
+        String lower = question.toLowerCase(Locale.ROOT);
+        StringBuilder out = new StringBuilder(lower.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '+' || c == '#') {
+                if (pendingSpace && out.length() > 0) {
+                    out.append(' ');
+                }
+                out.append(c);
+                pendingSpace = false;
+            } else {
+                pendingSpace = true;
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Returns the cached answer or null, counting a hit or miss
+     */
+    String get(String key) {
+        String answer = segmentFor(key).get(key, System.nanoTime());
+        if (answer != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return answer;
+    }
+
+    void put(String key, String answer) {
+        segmentFor(key).put(key, answer, System.nanoTime() + ttlNanos);
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static final class Entry {
+        final String answer;
+        final long expiresAt;
+
+        Entry(String answer, long expiresAt) {
+            this.answer = answer;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final class Segment {
+        private final int capacity;
+        private final LinkedHashMap<String, Entry> map;
+
+        Segment(int capacity, boolean accessOrder) {
+            this.capacity = capacity;
+            this.map = new LinkedHashMap<>(16, 0.75f, accessOrder);
+        }
+
+        synchronized String get(String key, long now) {
+            Entry entry = map.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt - now <= 0) {
+                map.remove(key);
+                evictions.increment();
+                return null;
+            }
+            return entry.answer;
+        }
+
+        synchronized void put(String key, String answer, long expiresAt) {
+            // Removed first so a rewrite moves to the back; in write order put() would keep its old place
+            map.remove(key);
+            map.put(key, new Entry(answer, expiresAt));
+            if (map.size() <= capacity) {
+                return;
+            }
+
+            // Iteration order is read order for LRU and write order for TTL
+            Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+            while (it.hasNext() && map.size() > capacity) {
+                it.next();
+                it.remove();
+                evictions.increment();
+            }
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+}
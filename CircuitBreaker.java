@@ -0,0 +1,146 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Failure-rate circuit breaker for one upstream model
+ * Closed: calls go through and outcomes fill a ring of the last few calls.
+ * Once enough calls are in the ring and too many failed, it opens and
+ * every call fails fast for the open period. Then a single trial call is
+ * let through (half-open); success closes the breaker, failure reopens it.
+ */
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final String name;
+    private final boolean[] outcomes;
+    private final int minCalls;
+    private final double failureRate;
+    private final long openNanos;
+
+    // Guarded by this
+    private State state = State.CLOSED;
+    private int next;
+    private int recorded;
+    private int failures;
+    private long openedAt;
+    private boolean trialRunning;
+
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    CircuitBreaker(String name, int window, int minCalls, double failureRate, long openMillis) {
+        this.name = name;
+        this.outcomes = new boolean[Math.max(1, window)];
+        this.minCalls = Math.max(1, Math.min(minCalls, outcomes.length));
+        this.failureRate = failureRate;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * True if a call may go ahead; every permitted call must report onSuccess or onFailure
+     */
+    synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openNanos) {
+                rejected.increment();
+                return false;
+            }
+            state = State.HALF_OPEN;
+            trialRunning = false;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialRunning) {
+                rejected.increment();
+                return false;
+            }
+            trialRunning = true;
+        }
+        return true;
+    }
+
+    synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            TutorLog.info("gemini", "✅ Circuit for " + name + " closed again");
+            reset(State.CLOSED);
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (recorded >= minCalls && failures >= failureRate * recorded) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * Releases a permit whose call was abandoned without an outcome, such as a cancelled hedge
+     */
+    synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            trialRunning = false;
+        }
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    /**
+     * Seconds until an open breaker lets a trial call through, at least 1
+     */
+    synchronized long retryAfterSeconds() {
+        if (state != State.OPEN) {
+            return 1;
+        }
+        long remaining = openNanos - (System.nanoTime() - openedAt);
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining) + 1);
+    }
+
+    long opened() {
+        return opened.sum();
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+
+    private void record(boolean failure) {
+        if (recorded == outcomes.length) {
+            if (outcomes[next]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        outcomes[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % outcomes.length;
+    }
+
+    private void open() {
+        TutorLog.warn("gemini", "🔌 Circuit for " + name + " opened (" + failures + "/" + recorded
+                + " recent calls failed), failing fast for " + TimeUnit.NANOSECONDS.toSeconds(openNanos) + " s");
+        reset(State.OPEN);
+        openedAt = System.nanoTime();
+        opened.increment();
+    }
+
+    private void reset(State newState) {
+        state = newState;
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        trialRunning = false;
+    }
+}
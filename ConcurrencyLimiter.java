@@ -0,0 +1,190 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive limit on concurrent Gemini calls
+ * The limit follows what Gemini can take instead of a fixed number:
+ * - gradient: compares the latest round trip with the long-run average; when
+ *   calls slow down (queueing upstream) the limit shrinks in proportion, and
+ *   when they are as fast as usual it grows by about sqrt(limit)
+ * - aimd: +1/limit per call that finished while the limit was in use (about
+ *   +1 per limit's worth of calls, like TCP congestion avoidance), x0.9 per drop
+ * With both, a 429, 5xx, timeout or connection error cuts the limit to 90%.
+ * Callers over the limit wait in a bounded FIFO queue and are turned away
+ * when it is full or their wait runs out.
+ *
+ * Settings: UPSTREAM_LIMIT_ALGORITHM, UPSTREAM_LIMIT_INITIAL, UPSTREAM_LIMIT_MIN,
+ * UPSTREAM_LIMIT_MAX, UPSTREAM_LIMIT_QUEUE
+ */
+final class ConcurrencyLimiter {
+
+    private static final double BACKOFF = 0.9;
+    // Round trips up to this multiple of the long-run average count as normal
+    private static final double TOLERANCE = 2.0;
+    private static final double SMOOTHING = 0.2;
+    private static final int LONG_WINDOW = 600;
+
+    private final boolean gradient;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+
+    // Guarded by this
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+    private double longRttNanos;
+    private long samples;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+
+    ConcurrencyLimiter(boolean gradient, int initialLimit, int minLimit, int maxLimit, int maxQueue) {
+        this.gradient = gradient;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.maxQueue = Math.max(0, maxQueue);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+    }
+
+    static ConcurrencyLimiter fromConfig() {
+        String algorithm = TutorConfig.get("UPSTREAM_LIMIT_ALGORITHM", "gradient");
+        if (!"gradient".equalsIgnoreCase(algorithm) && !"aimd".equalsIgnoreCase(algorithm)) {
+            System.out.println("⚠️ Unknown UPSTREAM_LIMIT_ALGORITHM '" + algorithm + "', using gradient");
+        }
+        return new ConcurrencyLimiter(!"aimd".equalsIgnoreCase(algorithm),
+                TutorConfig.getInt("UPSTREAM_LIMIT_INITIAL", 10),
+                TutorConfig.getInt("UPSTREAM_LIMIT_MIN", 2),
+                TutorConfig.getInt("UPSTREAM_LIMIT_MAX", 200),
+                TutorConfig.getInt("UPSTREAM_LIMIT_QUEUE", 100));
+    }
+
+    /**
+     * Completes with true once a call may start, or with false when the caller
+     * would wait longer than maxWaitMillis or the queue is full
+     * Every true must be followed by exactly one onSample or onIgnored
+     */
+    CompletableFuture<Boolean> acquire(long maxWaitMillis) {
+        Waiter waiter;
+        synchronized (this) {
+            if (queue.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                return CompletableFuture.completedFuture(true);
+            }
+            if (queue.size() >= maxQueue || maxWaitMillis <= 0) {
+                rejected.increment();
+                return CompletableFuture.completedFuture(false);
+            }
+            waiter = new Waiter();
+            queue.addLast(waiter);
+        }
+        CompletableFuture.delayedExecutor(maxWaitMillis, TimeUnit.MILLISECONDS).execute(() -> expire(waiter));
+        return waiter.future;
+    }
+
+    /**
+     * Ends a call, feeding its round trip and outcome into the limit
+     * dropped is true for signs of overload: 429, 5xx, timeouts, connection errors
+     */
+    void onSample(long rttNanos, boolean dropped) {
+        List<Waiter> ready;
+        synchronized (this) {
+            int inFlightAtEnd = inFlight--;
+            if (dropped) {
+                drops.increment();
+                limit = Math.max(minLimit, limit * BACKOFF);
+            } else {
+                update(rttNanos, inFlightAtEnd);
+            }
+            ready = admitWaiters();
+        }
+        complete(ready);
+    }
+
+    /**
+     * Ends a call that says nothing about Gemini, such as a cancelled one
+     */
+    void onIgnored() {
+        List<Waiter> ready;
+        synchronized (this) {
+            inFlight--;
+            ready = admitWaiters();
+        }
+        complete(ready);
+    }
+
+    synchronized long limit() {
+        return (long) limit;
+    }
+
+    synchronized long inFlight() {
+        return inFlight;
+    }
+
+    synchronized long waiting() {
+        return queue.size();
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+
+    long drops() {
+        return drops.sum();
+    }
+
+    private void update(long rttNanos, int inFlightAtEnd) {
+        samples++;
+        longRttNanos = samples == 1
+                ? rttNanos
+                : longRttNanos + (rttNanos - longRttNanos) / Math.min(samples, LONG_WINDOW);
+
+        // Only grow while the limit is actually being used, or it drifts up without evidence
+        boolean used = inFlightAtEnd >= limit / 2;
+        if (gradient) {
+            double ratio = Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / Math.max(1, rttNanos)));
+            // sqrt(limit) of headroom lets a few calls queue upstream, which is how speed-ups get noticed
+            double target = limit * ratio + Math.sqrt(limit);
+            if (target < limit || used) {
+                limit = limit * (1 - SMOOTHING) + target * SMOOTHING;
+            }
+        } else if (used) {
+            limit += 1.0 / limit;
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, limit));
+    }
+
+    private List<Waiter> admitWaiters() {
+        List<Waiter> ready = new ArrayList<>();
+        while (!queue.isEmpty() && inFlight < (int) limit) {
+            inFlight++;
+            ready.add(queue.pollFirst());
+        }
+        return ready;
+    }
+
+    private void expire(Waiter waiter) {
+        synchronized (this) {
+            if (!queue.remove(waiter)) {
+                return;
+            }
+        }
+        rejected.increment();
+        waiter.future.complete(false);
+    }
+
+    // Completed outside the lock so callbacks never run while holding it
+    private static void complete(List<Waiter> ready) {
+        for (Waiter waiter : ready) {
+            waiter.future.complete(true);
+        }
+    }
+
+    private static final class Waiter {
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+    }
+}
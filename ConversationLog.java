@@ -0,0 +1,660 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Per-session conversation history on an append-only, memory-mapped log
+ * Turns are appended to fixed-size segment files through MappedByteBuffer,
+ * and an in-memory index keeps the positions of each session's latest turns,
+ * so neither appends nor "last N turns" reads ever scan the log.
+ *
+ * On startup the segments are replayed to rebuild the index, stopping at the
+ * first torn or corrupt record. In the background, segments that are mostly
+ * dead (turns pushed out of a session's window or sessions that expired) are
+ * compacted by copying their live turns forward and deleting the file.
+ * Every turn carries a sequence number, so a turn that a crash left in both
+ * the compacted segment and its copy is replayed once.
+ *
+ * Record layout: int length, int crc32 of the payload, then the payload
+ * [short idLen][id][long time][long sequence][short subjectLen][subject][int qLen][question][int aLen][answer]
+ *
+ * Settings: HISTORY_ENABLED, HISTORY_DIR, HISTORY_SEGMENT_MB, HISTORY_MAX_TURNS,
+ * HISTORY_TTL_HOURS, HISTORY_COMPACT_RATIO
+ */
+final class ConversationLog {
+
+    /**
+     * One question and the tutor's answer to it
+     */
+    static final class Turn {
+        final String subject;
+        final String question;
+        final String answer;
+        final long timeMillis;
+
+        Turn(String subject, String question, String answer, long timeMillis) {
+            this.subject = subject;
+            this.question = question;
+            this.answer = answer;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    private static final int HEADER = 8;
+    private static final int MAX_ID_LENGTH = 64;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxRecordBytes;
+    private final int maxTurns;
+    private final long ttlMillis;
+    private final double compactRatio;
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService maintenance;
+
+    // Guarded by this: the segment being appended to and the last sequence number given out
+    private Segment active;
+    private long sequence;
+
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder compacted = new LongAdder();
+
+    ConversationLog(Path dir, int segmentBytes, int maxTurns, long ttlMillis, double compactRatio) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxRecordBytes = segmentBytes / 4;
+        this.maxTurns = Math.max(1, maxTurns);
+        this.ttlMillis = ttlMillis;
+        this.compactRatio = compactRatio;
+
+        Files.createDirectories(dir);
+        recover();
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "history-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Mapped pages reach disk on their own; forcing bounds the loss on power failure
+        maintenance.scheduleWithFixedDelay(this::force, 1, 1, TimeUnit.SECONDS);
+        maintenance.scheduleWithFixedDelay(this::maintain, 30, 30, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::force, "history-flush"));
+    }
+
+    /**
+     * Opens the log from HISTORY_* settings; null when disabled or the directory is unusable
+     */
+    static ConversationLog fromConfig() {
+        if (!TutorConfig.getBoolean("HISTORY_ENABLED", true)) {
+            return null;
+        }
+        Path dir = Paths.get(TutorConfig.get("HISTORY_DIR", "history"));
+        try {
+            long start = System.nanoTime();
+            ConversationLog log = new ConversationLog(dir,
+                    Math.max(1, Math.min(1024, TutorConfig.getInt("HISTORY_SEGMENT_MB", 64))) << 20,
+                    TutorConfig.getInt("HISTORY_MAX_TURNS", 20),
+                    TimeUnit.HOURS.toMillis(TutorConfig.getLong("HISTORY_TTL_HOURS", 24)),
+                    TutorConfig.getDouble("HISTORY_COMPACT_RATIO", 0.5));
+            System.out.println("📜 Conversation history in " + dir.toAbsolutePath() + " (" + log.sessions()
+                    + " sessions recovered in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)");
+            return log;
+        } catch (IOException e) {
+            System.err.println("⚠️ Conversation history disabled, cannot open " + dir + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the session id if it is safe to use as a key (letters, digits, '-' and '_'), else null
+     */
+    static String sessionId(String raw) {
+        if (raw == null || raw.isEmpty() || raw.length() > MAX_ID_LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_')) {
+                return null;
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * Appends one turn to a session
+     */
+    void append(String sessionId, String subject, String question, String answer) {
+        long now = System.currentTimeMillis();
+        byte[] payload = encode(sessionId, now, subject, question, answer);
+        if (payload.length + HEADER > maxRecordBytes) {
+            TutorLog.warn("history", "⚠️ Turn of " + payload.length + " bytes is too large for the history log, skipped");
+            return;
+        }
+        Session session = sessions.computeIfAbsent(sessionId, id -> new Session(maxTurns, now));
+        try {
+            long position;
+            long turn;
+            synchronized (this) {
+                turn = ++sequence;
+                ByteBuffer.wrap(payload).putLong(sequenceOffset(payload), turn);
+                position = write(payload);
+            }
+            session.add(position, payload.length + HEADER, subject, now, turn, this);
+            appends.increment();
+        } catch (IOException | RuntimeException e) {
+            // History is best effort; the answer still goes out
+            TutorLog.error("history", "❌ Could not append to history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The session's latest turns, oldest first (at most n)
+     */
+    List<Turn> lastTurns(String sessionId, int n) {
+        Session session = sessions.get(sessionId);
+        if (session == null || n <= 0) {
+            return Collections.emptyList();
+        }
+        long[] positions = session.latest(n);
+        List<Turn> turns = new ArrayList<>(positions.length);
+        for (long position : positions) {
+            Turn turn = read(position);
+            if (turn != null) {
+                turns.add(turn);
+            }
+        }
+        return turns;
+    }
+
+    /**
+     * Subject of the session's latest turn, used for follow-ups like "explain more"
+     */
+    String lastSubject(String sessionId) {
+        Session session = sessions.get(sessionId);
+        return session == null ? null : session.subject;
+    }
+
+    int sessions() {
+        return sessions.size();
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    long appends() {
+        return appends.sum();
+    }
+
+    long compacted() {
+        return compacted.sum();
+    }
+
+    // ---- writing ----
+
+    /**
+     * Writes a record into the active segment; the length goes in last so a
+     * record torn by a crash never looks complete. Caller holds the lock
+     */
+    private long write(byte[] payload) throws IOException {
+        int size = HEADER + payload.length;
+        // A recovered segment keeps the size it was created with, which may differ from segmentBytes
+        if (active.end + size > active.capacity) {
+            roll();
+        }
+        int offset = active.end;
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(offset + HEADER);
+        buffer.put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.putInt(offset, payload.length);
+        active.end = offset + size;
+        active.live.addAndGet(size);
+        return position(active.id, offset);
+    }
+
+    private void roll() throws IOException {
+        Segment sealed = active;
+        sealed.buffer.force();
+        active = Segment.create(dir, sealed.id + 1, segmentBytes);
+        segments.put(active.id, active);
+        TutorLog.info("history", "📜 History segment " + sealed.id + " sealed, writing to " + active.id);
+    }
+
+    // ---- reading ----
+
+    private Turn read(long position) {
+        Segment segment = segments.get(segmentOf(position));
+        if (segment == null) {
+            return null; // compacted away between the index lookup and now
+        }
+        ByteBuffer record = segment.record(offsetOf(position));
+        if (record == null) {
+            return null;
+        }
+        int idLength = readShort(record);
+        record.position(record.position() + idLength);
+        long time = record.getLong();
+        record.getLong(); // sequence
+        String subject = readString(record, readShort(record));
+        String question = readString(record, record.getInt());
+        String answer = readString(record, record.getInt());
+        return new Turn(subject.isEmpty() ? null : subject, question, answer, time);
+    }
+
+    private static byte[] encode(String sessionId, long time, String subject, String question, String answer) {
+        byte[] id = sessionId.getBytes(StandardCharsets.UTF_8);
+        byte[] subjectBytes = (subject == null ? "" : subject).getBytes(StandardCharsets.UTF_8);
+        byte[] questionBytes = question.getBytes(StandardCharsets.UTF_8);
+        byte[] answerBytes = answer.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + id.length + 8 + 8 + 2 + subjectBytes.length
+                + 4 + questionBytes.length + 4 + answerBytes.length);
+        // The sequence number is filled in by append, under the lock
+        payload.putShort((short) id.length).put(id).putLong(time).putLong(0);
+        payload.putShort((short) subjectBytes.length).put(subjectBytes);
+        payload.putInt(questionBytes.length).put(questionBytes);
+        payload.putInt(answerBytes.length).put(answerBytes);
+        return payload.array();
+    }
+
+    private static int sequenceOffset(byte[] payload) {
+        return 2 + ((payload[0] & 0xFF) << 8 | payload[1] & 0xFF) + 8;
+    }
+
+    /**
+     * Reads the session id at the start of a payload
+     */
+    private static String readId(ByteBuffer payload) {
+        return readString(payload, readShort(payload));
+    }
+
+    private static int readShort(ByteBuffer buffer) {
+        return buffer.getShort() & 0xFFFF;
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ---- recovery ----
+
+    /**
+     * Maps every segment in order and replays its records into the index
+     * A torn or corrupt record ends the log: it is zeroed and appends resume there
+     */
+    private void recover() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    TutorLog.warn("history", "⚠️ Ignoring unexpected file in history directory: " + name);
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = Segment.open(dir, ids.get(i), segmentBytes);
+            segments.put(segment.id, segment);
+            replay(segment, cutoff, i == ids.size() - 1);
+        }
+
+        if (segments.isEmpty()) {
+            Segment first = Segment.create(dir, 1, segmentBytes);
+            segments.put(first.id, first);
+        }
+        active = segments.lastEntry().getValue();
+    }
+
+    private void replay(Segment segment, long cutoff, boolean last) {
+        int offset = 0;
+        while (offset + HEADER <= segment.capacity) {
+            int length = segment.buffer.getInt(offset);
+            if (length == 0) {
+                break; // end of the written part
+            }
+            ByteBuffer payload = segment.record(offset);
+            if (payload == null) {
+                TutorLog.warn("history", "⚠️ History segment " + segment.id + " has a torn record at " + offset
+                        + (last ? ", truncating" : ", skipping the rest"));
+                if (last) {
+                    // A torn write never reaches past one maximum-sized record
+                    int clearTo = (int) Math.min(segment.capacity, (long) offset + HEADER + maxRecordBytes);
+                    for (int i = offset; i < clearTo; i++) {
+                        segment.buffer.put(i, (byte) 0);
+                    }
+                }
+                break;
+            }
+            int size = HEADER + length;
+            String id = readId(payload);
+            long time = payload.getLong();
+            long turn = payload.getLong();
+            String subject = readString(payload, readShort(payload));
+            sequence = Math.max(sequence, turn);
+            segment.live.addAndGet(size);
+            Session session = time >= cutoff ? sessions.computeIfAbsent(id, key -> new Session(maxTurns, time)) : null;
+            // A turn copied by a compaction that crashed before deleting its source is seen twice
+            if (session == null || !session.add(position(segment.id, offset), size, subject.isEmpty() ? null : subject,
+                    time, turn, this)) {
+                segment.live.addAndGet(-size);
+            }
+            offset += size;
+        }
+        segment.end = offset;
+    }
+
+    // ---- maintenance ----
+
+    private void force() {
+        Segment current;
+        synchronized (this) {
+            current = active;
+        }
+        try {
+            current.buffer.force();
+        } catch (RuntimeException e) {
+            TutorLog.error("history", "❌ Could not flush history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops expired sessions, then compacts sealed segments that are mostly dead
+     */
+    private void maintain() {
+        try {
+            long cutoff = System.currentTimeMillis() - ttlMillis;
+            for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+                if (entry.getValue().lastUsed < cutoff && sessions.remove(entry.getKey(), entry.getValue())) {
+                    entry.getValue().release(this);
+                }
+            }
+
+            for (Segment segment : new ArrayList<>(segments.values())) {
+                boolean sealed;
+                synchronized (this) {
+                    sealed = segment != active;
+                }
+                if (sealed && segment.live.get() <= compactRatio * segment.end) {
+                    compact(segment);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            TutorLog.error("history", "❌ History maintenance failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Copies the segment's live turns to the head of the log, then deletes it
+     */
+    private void compact(Segment segment) throws IOException {
+        int moved = 0;
+        int offset = 0;
+        while (offset < segment.end && segment.live.get() > 0) {
+            ByteBuffer payload = segment.record(offset);
+            if (payload == null) {
+                break;
+            }
+            int length = payload.remaining();
+            long position = position(segment.id, offset);
+            ByteBuffer header = payload.duplicate();
+            Session session = sessions.get(readId(header));
+            if (session != null && session.contains(position)) {
+                byte[] copy = new byte[length];
+                payload.get(copy);
+                long moveTo;
+                synchronized (this) {
+                    moveTo = write(copy);
+                }
+                if (session.replace(position, moveTo)) {
+                    segment.live.addAndGet(-(HEADER + length));
+                    moved++;
+                } else {
+                    // Pushed out of the session while copying; the copy is dead
+                    segmentAt(moveTo).live.addAndGet(-(HEADER + length));
+                }
+            }
+            offset += HEADER + length;
+        }
+
+        segments.remove(segment.id);
+        segment.close();
+        Files.deleteIfExists(segment.path);
+        compacted.increment();
+        TutorLog.info("history", "🧹 Compacted history segment " + segment.id + " (" + moved + " live turns moved)");
+    }
+
+    private Segment segmentAt(long position) {
+        return segments.get(segmentOf(position));
+    }
+
+    private void released(long position, int size) {
+        Segment segment = segmentAt(position);
+        if (segment != null) {
+            segment.live.addAndGet(-size);
+        }
+    }
+
+    private static long position(int segment, int offset) {
+        return (long) segment << 32 | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+
+    /**
+     * One session's latest turn positions, oldest first, at most maxTurns
+     * Kept in time order rather than log order, since compaction moves old
+     * turns to the head of the log
+     */
+    private static final class Session {
+        private final long[] positions;
+        private final long[] times;
+        private final long[] sequences;
+        private final int[] sizes;
+        private int count;
+        volatile String subject;
+        volatile long lastUsed;
+
+        Session(int maxTurns, long created) {
+            positions = new long[maxTurns];
+            times = new long[maxTurns];
+            sequences = new long[maxTurns];
+            sizes = new int[maxTurns];
+            // Set up front so the expiry sweep cannot drop a session before its first turn lands
+            lastUsed = created;
+        }
+
+        /**
+         * Adds a turn; false if a turn with the same sequence number is already here
+         */
+        boolean add(long position, int size, String subject, long time, long sequence, ConversationLog log) {
+            long released = -1;
+            int releasedSize = 0;
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    if (sequences[i] == sequence) {
+                        return false;
+                    }
+                }
+                // New turns land at the end; only replayed, compacted turns go further in
+                int at = count;
+                while (at > 0 && times[at - 1] > time) {
+                    at--;
+                }
+                if (count == positions.length) {
+                    if (at == 0) {
+                        released = position; // older than everything kept
+                        releasedSize = size;
+                    } else {
+                        released = positions[0];
+                        releasedSize = sizes[0];
+                        at--;
+                        System.arraycopy(positions, 1, positions, 0, at);
+                        System.arraycopy(times, 1, times, 0, at);
+                        System.arraycopy(sequences, 1, sequences, 0, at);
+                        System.arraycopy(sizes, 1, sizes, 0, at);
+                    }
+                } else {
+                    System.arraycopy(positions, at, positions, at + 1, count - at);
+                    System.arraycopy(times, at, times, at + 1, count - at);
+                    System.arraycopy(sequences, at, sequences, at + 1, count - at);
+                    System.arraycopy(sizes, at, sizes, at + 1, count - at);
+                    count++;
+                }
+                if (released != position) {
+                    positions[at] = position;
+                    times[at] = time;
+                    sequences[at] = sequence;
+                    sizes[at] = size;
+                }
+                if (subject != null && released != position && at == count - 1) {
+                    this.subject = subject;
+                }
+            }
+            if (released != -1) {
+                log.released(released, releasedSize);
+            }
+            lastUsed = Math.max(lastUsed, time);
+            return true;
+        }
+
+        synchronized long[] latest(int n) {
+            int take = Math.min(n, count);
+            long[] latest = new long[take];
+            System.arraycopy(positions, count - take, latest, 0, take);
+            return latest;
+        }
+
+        synchronized boolean contains(long position) {
+            for (int i = 0; i < count; i++) {
+                if (positions[i] == position) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized boolean replace(long from, long to) {
+            for (int i = 0; i < count; i++) {
+                if (positions[i] == from) {
+                    positions[i] = to;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void release(ConversationLog log) {
+            for (int i = 0; i < count; i++) {
+                log.released(positions[i], sizes[i]);
+            }
+            count = 0;
+        }
+    }
+
+    /**
+     * One fixed-size, memory-mapped segment file
+     */
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        final AtomicLong live = new AtomicLong();
+        volatile int end;
+
+        private Segment(int id, Path path, FileChannel channel, int capacity) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.capacity = capacity;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        static Segment create(Path dir, int id, int capacity) throws IOException {
+            Path path = dir.resolve(name(id));
+            return new Segment(id, path, FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE), capacity);
+        }
+
+        static Segment open(Path dir, int id, int capacity) throws IOException {
+            Path path = dir.resolve(name(id));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Keep the segment size a file was written with, even if the setting changed since
+            long size = channel.size();
+            return new Segment(id, path, channel, size > 0 ? (int) Math.min(size, Integer.MAX_VALUE) : capacity);
+        }
+
+        /**
+         * The payload of the record at offset, or null if it is torn or corrupt
+         */
+        ByteBuffer record(int offset) {
+            if (offset < 0 || offset + HEADER > capacity) {
+                return null;
+            }
+            int length = buffer.getInt(offset);
+            if (length <= 0 || (long) offset + HEADER + length > capacity) {
+                return null;
+            }
+            ByteBuffer payload = buffer.duplicate();
+            payload.limit(offset + HEADER + length).position(offset + HEADER);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                return null;
+            }
+            return payload;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // The mapping stays valid for readers still holding it
+            }
+        }
+
+        private static String name(int id) {
+            return String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX);
+        }
+    }
+}
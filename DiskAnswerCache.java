@@ -0,0 +1,560 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent answer cache under the in-memory AnswerCache, so restarts start warm
+ * Two memory-mapped files per generation: an open-addressing hash index of
+ * (key hash, record offset) slots and an append-only data file of checksummed
+ * records. Opening only maps the files, so startup time does not depend on how
+ * many answers are stored; pages are read in as lookups touch them.
+ *
+ * A background task rewrites the live, unexpired records into the next
+ * generation once too much of the data file is dead or the index fills up.
+ * Records are copied oldest first; when the live answers alone would fill
+ * more than KEEP_RATIO of the data file, the oldest ones are evicted.
+ *
+ * Settings: DISK_CACHE_ENABLED, DISK_CACHE_DIR, DISK_CACHE_MAX_MB,
+ * DISK_CACHE_SLOTS, DISK_CACHE_TTL_SECONDS
+ */
+final class DiskAnswerCache {
+
+    private static final int MAGIC = 0x41544443; // "ATDC"
+    private static final int VERSION = 1;
+
+    // Index header: magic, version, slot count, complete flag, data end, live bytes, entries
+    private static final int H_MAGIC = 0, H_VERSION = 4, H_SLOTS = 8, H_COMPLETE = 12;
+    private static final int H_DATA_END = 16, H_LIVE_BYTES = 24, H_ENTRIES = 32;
+    private static final int INDEX_HEADER = 64;
+    private static final int SLOT = 16; // long hash (0 = empty), long offset
+
+    // Data record: int length, int crc32, then [long expiresAt][int keyLen][key][int answerLen][answer]
+    private static final int RECORD_HEADER = 8;
+    private static final long DATA_START = 8; // offset 0 never holds a record
+
+    // Share of the data file a compaction may fill, so a full cache gets real headroom back
+    private static final double KEEP_RATIO = 0.7;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Path dir;
+    private final int dataBytes;
+    private final int minSlots;
+    private final long ttlMillis;
+    private final ScheduledExecutorService compactor;
+    private volatile long lastCompactionMillis = System.currentTimeMillis();
+
+    // Replaced as a whole by compaction; readers keep using the old one until they finish
+    private volatile Store store;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder corrupt = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    DiskAnswerCache(Path dir, int dataBytes, int slots, long ttlMillis) throws IOException {
+        this.dir = dir;
+        this.dataBytes = dataBytes;
+        this.minSlots = Integer.highestOneBit(Math.max(1024, slots - 1)) << 1;
+        this.ttlMillis = ttlMillis;
+
+        Files.createDirectories(dir);
+        this.store = openLatest();
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "disk-cache-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::maintain, 60, 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Opens the cache from DISK_CACHE_* settings; null when disabled or the directory is unusable
+     */
+    static DiskAnswerCache fromConfig() {
+        if (!TutorConfig.getBoolean("DISK_CACHE_ENABLED", true)) {
+            return null;
+        }
+        Path dir = Paths.get(TutorConfig.get("DISK_CACHE_DIR", "cache"));
+        try {
+            long start = System.nanoTime();
+            DiskAnswerCache cache = new DiskAnswerCache(dir,
+                    Math.max(1, Math.min(2047, TutorConfig.getInt("DISK_CACHE_MAX_MB", 512))) << 20,
+                    TutorConfig.getInt("DISK_CACHE_SLOTS", 1 << 18),
+                    TimeUnit.SECONDS.toMillis(TutorConfig.getLong("DISK_CACHE_TTL_SECONDS", 7 * 24 * 60 * 60)));
+            System.out.println("💽 Disk answer cache in " + dir.toAbsolutePath() + " (" + cache.size()
+                    + " answers, opened in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)");
+            return cache;
+        } catch (IOException e) {
+            System.err.println("⚠️ Disk answer cache disabled, cannot open " + dir + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the stored answer or null, counting a hit or miss
+     */
+    String get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        String answer = store.get(keyBytes, hash(keyBytes), System.currentTimeMillis(), corrupt);
+        if (answer != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return answer;
+    }
+
+    void put(String key, String answer) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] record = encode(keyBytes, answer.getBytes(StandardCharsets.UTF_8), System.currentTimeMillis() + ttlMillis);
+        synchronized (this) {
+            if (!store.put(keyBytes, hash(keyBytes), record)) {
+                // Full until the next compaction frees space
+                dropped.increment();
+            }
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long size() {
+        return store.entries();
+    }
+
+    long corrupt() {
+        return corrupt.sum();
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    long compactions() {
+        return compactions.sum();
+    }
+
+    long evicted() {
+        return evicted.sum();
+    }
+
+    // ---- startup ----
+
+    /**
+     * Maps the newest complete generation and removes any others
+     */
+    private Store openLatest() throws IOException {
+        List<Integer> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "answers-*.idx")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Integer.parseInt(name.substring("answers-".length(), name.length() - ".idx".length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        generations.sort(Collections.reverseOrder());
+
+        Store latest = null;
+        for (int generation : generations) {
+            if (latest == null) {
+                try {
+                    latest = Store.open(dir, generation);
+                    continue;
+                } catch (IOException e) {
+                    // An unfinished compaction or a damaged file; fall back to the one before
+                    System.err.println("⚠️ Skipping disk cache generation " + generation + ": " + e.getMessage());
+                }
+            }
+            Store.delete(dir, generation);
+        }
+        return latest != null ? latest : Store.create(dir, 1, minSlots, dataBytes, true);
+    }
+
+    // ---- compaction ----
+
+    private void maintain() {
+        try {
+            Store current = store;
+            long used = current.dataEnd() - DATA_START;
+            boolean mostlyDead = used > 0 && current.liveBytes() < used / 2;
+            boolean indexFull = current.entries() > current.slots * 0.7;
+            boolean dataFull = current.dataEnd() > current.data.capacity() * 0.9;
+            // Expired answers only go away when rewritten, so sweep at least once per TTL
+            boolean sweepDue = current.entries() > 0
+                    && System.currentTimeMillis() - lastCompactionMillis > Math.min(ttlMillis, TimeUnit.DAYS.toMillis(1));
+            if (mostlyDead || indexFull || dataFull || sweepDue) {
+                compact(current);
+            }
+        } catch (IOException | RuntimeException e) {
+            TutorLog.error("cache", "❌ Disk cache compaction failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Copies the live, unexpired records into a new generation and switches to it
+     * Records go over in data file order, so the file stays oldest first and the
+     * oldest are the ones left behind when they would not fit in KEEP_RATIO.
+     * Puts keep going to the old generation while copying; the records they
+     * appended are carried over under the lock just before the switch
+     */
+    private void compact(Store old) throws IOException {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        int slots = old.entries() > old.slots * 0.35 ? old.slots * 2 : Math.max(minSlots, old.slots);
+        Store next = Store.create(dir, old.generation + 1, slots, dataBytes, false);
+
+        long copiedUpTo;
+        synchronized (this) {
+            copiedUpTo = old.dataEnd();
+        }
+        long[] offsets = new long[(int) Math.min(old.slots, old.entries())];
+        int count = 0;
+        for (int slot = 0; slot < old.slots && count < offsets.length; slot++) {
+            long offset = old.slotOffset(slot);
+            if (offset != 0 && offset < copiedUpTo) {
+                offsets[count++] = offset;
+            }
+        }
+        Arrays.sort(offsets, 0, count);
+
+        // Walk back from the newest until the budget runs out; everything older is evicted
+        long budget = (long) (dataBytes * KEEP_RATIO);
+        int first = count;
+        while (first > 0) {
+            long offset = offsets[first - 1];
+            if (old.data.getLong((int) offset + RECORD_HEADER) >= now) {
+                long size = RECORD_HEADER + old.data.getInt((int) offset);
+                if (size > budget) {
+                    break;
+                }
+                budget -= size;
+            }
+            first--;
+        }
+        for (int i = first; i < count; i++) {
+            copyRecord(old, offsets[i], next, now);
+        }
+
+        synchronized (this) {
+            // Records appended while copying, in order so the newest answer wins
+            long offset = copiedUpTo;
+            while (offset < old.dataEnd()) {
+                int length = old.data.getInt((int) offset);
+                copyRecord(old, offset, next, now);
+                offset += RECORD_HEADER + length;
+            }
+            next.markComplete();
+            store = next;
+        }
+
+        old.close();
+        Store.delete(dir, old.generation);
+        compactions.increment();
+        evicted.add(first);
+        lastCompactionMillis = System.currentTimeMillis();
+        TutorLog.info("cache", "🧹 Disk cache compacted into generation " + next.generation + ": " + next.entries()
+                + " answers kept, " + first + " oldest evicted, in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    private void copyRecord(Store from, long offset, Store to, long now) {
+        ByteBuffer record = from.record(offset);
+        if (record == null || record.getLong(record.position()) < now) {
+            return; // corrupt or expired
+        }
+        int keyLength = record.getInt(record.position() + 8);
+        byte[] key = new byte[keyLength];
+        record.duplicate().position(record.position() + 12).get(key);
+        byte[] bytes = new byte[record.remaining()];
+        record.duplicate().get(bytes);
+        to.put(key, hash(key), bytes);
+    }
+
+    // ---- encoding ----
+
+    private static byte[] encode(byte[] key, byte[] answer, long expiresAt) {
+        ByteBuffer payload = ByteBuffer.allocate(8 + 4 + key.length + 4 + answer.length);
+        payload.putLong(expiresAt).putInt(key.length).put(key).putInt(answer.length).put(answer);
+        return payload.array();
+    }
+
+    /**
+     * 64-bit FNV-1a with a final mix; never 0, which marks an empty slot
+     */
+    private static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * One generation: the mapped index and data files
+     */
+    private static final class Store {
+        final int generation;
+        final int slots;
+        final FileChannel indexChannel;
+        final FileChannel dataChannel;
+        final MappedByteBuffer index;
+        final MappedByteBuffer data;
+
+        private Store(int generation, FileChannel indexChannel, FileChannel dataChannel, int slots, int dataBytes)
+                throws IOException {
+            this.generation = generation;
+            this.slots = slots;
+            this.indexChannel = indexChannel;
+            this.dataChannel = dataChannel;
+            this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) slots * SLOT);
+            this.data = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, dataBytes);
+        }
+
+        static Store create(Path dir, int generation, int slots, int dataBytes, boolean complete) throws IOException {
+            delete(dir, generation);
+            FileChannel indexChannel = FileChannel.open(indexPath(dir, generation), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileChannel dataChannel = FileChannel.open(dataPath(dir, generation), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Store store = new Store(generation, indexChannel, dataChannel, slots, dataBytes);
+            store.index.putInt(H_MAGIC, MAGIC);
+            store.index.putInt(H_VERSION, VERSION);
+            store.index.putInt(H_SLOTS, slots);
+            store.index.putLong(H_DATA_END, DATA_START);
+            if (complete) {
+                store.markComplete();
+            }
+            return store;
+        }
+
+        /**
+         * Maps an existing generation; only the header is read, nothing is scanned
+         */
+        static Store open(Path dir, int generation) throws IOException {
+            FileChannel indexChannel = FileChannel.open(indexPath(dir, generation), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            FileChannel dataChannel = null;
+            try {
+                ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+                indexChannel.read(header, 0);
+                if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION) {
+                    throw new IOException("not a disk cache index");
+                }
+                if (header.getInt(H_COMPLETE) != 1) {
+                    throw new IOException("compaction did not finish");
+                }
+                dataChannel = FileChannel.open(dataPath(dir, generation), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                long dataBytes = dataChannel.size();
+                if (dataBytes < DATA_START || dataBytes > Integer.MAX_VALUE) {
+                    throw new IOException("bad data file size " + dataBytes);
+                }
+                return new Store(generation, indexChannel, dataChannel, header.getInt(H_SLOTS), (int) dataBytes);
+            } catch (IOException e) {
+                indexChannel.close();
+                if (dataChannel != null) {
+                    dataChannel.close();
+                }
+                throw e;
+            }
+        }
+
+        String get(byte[] key, long hash, long now, LongAdder corrupt) {
+            int mask = slots - 1;
+            for (int i = 0, slot = (int) hash & mask; i < slots; i++, slot = (slot + 1) & mask) {
+                long slotHash = slotHash(slot);
+                if (slotHash == 0) {
+                    return null;
+                }
+                if (slotHash != hash) {
+                    continue;
+                }
+                ByteBuffer record = record(slotOffset(slot));
+                if (record == null) {
+                    corrupt.increment();
+                    return null;
+                }
+                if (!keyEquals(record, key)) {
+                    continue;
+                }
+                if (record.getLong(record.position()) < now) {
+                    return null; // expired; dropped at the next compaction
+                }
+                int answerAt = record.position() + 12 + key.length;
+                byte[] answer = new byte[record.getInt(answerAt)];
+                record.position(answerAt + 4);
+                record.get(answer);
+                return new String(answer, StandardCharsets.UTF_8);
+            }
+            return null;
+        }
+
+        /**
+         * Appends a record and points the key's slot at it; false if the store is full
+         * Caller holds the cache lock, so there is a single writer
+         */
+        boolean put(byte[] key, long hash, byte[] payload) {
+            long offset = dataEnd();
+            int size = RECORD_HEADER + payload.length;
+            if (offset + size > data.capacity() || entries() >= slots * 0.9) {
+                return false;
+            }
+
+            // Record first, with its length written last, then the index
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ByteBuffer out = data.duplicate();
+            out.position((int) offset + RECORD_HEADER);
+            out.put(payload);
+            data.putInt((int) offset + 4, (int) crc.getValue());
+            data.putInt((int) offset, payload.length);
+            index.putLong(H_DATA_END, offset + size);
+
+            int mask = slots - 1;
+            for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+                long slotHash = slotHash(slot);
+                if (slotHash == 0) {
+                    LONGS.setRelease(index, slotBase(slot) + 8, offset);
+                    LONGS.setRelease(index, slotBase(slot), hash);
+                    index.putLong(H_ENTRIES, entries() + 1);
+                    break;
+                }
+                if (slotHash == hash) {
+                    ByteBuffer previous = record(slotOffset(slot));
+                    if (previous == null || keyEquals(previous, key)) {
+                        if (previous != null) {
+                            index.putLong(H_LIVE_BYTES, liveBytes() - (RECORD_HEADER + previous.remaining()));
+                        }
+                        LONGS.setRelease(index, slotBase(slot) + 8, offset);
+                        break;
+                    }
+                }
+            }
+            index.putLong(H_LIVE_BYTES, liveBytes() + size);
+            return true;
+        }
+
+        /**
+         * The payload of the record at offset, or null if it is torn or corrupt
+         */
+        ByteBuffer record(long offset) {
+            if (offset < DATA_START || offset + RECORD_HEADER > data.capacity()) {
+                return null;
+            }
+            int length = data.getInt((int) offset);
+            if (length < 16 || offset + RECORD_HEADER + length > data.capacity()) {
+                return null;
+            }
+            ByteBuffer payload = data.duplicate();
+            payload.limit((int) offset + RECORD_HEADER + length).position((int) offset + RECORD_HEADER);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            return (int) crc.getValue() == data.getInt((int) offset + 4) ? payload : null;
+        }
+
+        private static boolean keyEquals(ByteBuffer record, byte[] key) {
+            int at = record.position() + 8;
+            if (record.getInt(at) != key.length) {
+                return false;
+            }
+            at += 4;
+            for (int i = 0; i < key.length; i++) {
+                if (record.get(at + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long slotHash(int slot) {
+            return (long) LONGS.getAcquire(index, slotBase(slot));
+        }
+
+        long slotOffset(int slot) {
+            return (long) LONGS.getAcquire(index, slotBase(slot) + 8);
+        }
+
+        private static int slotBase(int slot) {
+            return INDEX_HEADER + slot * SLOT;
+        }
+
+        long dataEnd() {
+            return index.getLong(H_DATA_END);
+        }
+
+        long liveBytes() {
+            return index.getLong(H_LIVE_BYTES);
+        }
+
+        long entries() {
+            return index.getLong(H_ENTRIES);
+        }
+
+        /**
+         * Flushes both files and only then flags the generation as usable
+         */
+        void markComplete() {
+            data.force();
+            index.force();
+            index.putInt(H_COMPLETE, 1);
+            index.force();
+        }
+
+        void close() {
+            try {
+                index.force();
+                data.force();
+                indexChannel.close();
+                dataChannel.close();
+            } catch (IOException e) {
+                // Mappings stay valid for readers still holding them
+            }
+        }
+
+        static void delete(Path dir, int generation) throws IOException {
+            Files.deleteIfExists(indexPath(dir, generation));
+            Files.deleteIfExists(dataPath(dir, generation));
+        }
+
+        private static Path indexPath(Path dir, int generation) {
+            return dir.resolve(String.format("answers-%06d.idx", generation));
+        }
+
+        private static Path dataPath(Path dir, int generation) {
+            return dir.resolve(String.format("answers-%06d.dat", generation));
+        }
+    }
+}
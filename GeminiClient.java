@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Asynchronous Gemini API client
+ * One shared HttpClient keeps connections (and TLS sessions) alive between
+ * questions and multiplexes concurrent calls over HTTP/2
+ */
+final class GeminiClient {
+
+    static final String DEFAULT_BASE_URL = "https://generativelanguage.googleapis.com/v1beta";
+
+    private final HttpClient http;
+    private final String apiKey;
+    private final String baseUrl;
+    private final String model;
+    private final Duration requestTimeout;
+    private final boolean gzip;
+
+    // One breaker per model, created on first use; null factory when GEMINI_CIRCUIT_ENABLED=false
+    private final Function<String, CircuitBreaker> newBreaker;
+    private final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    GeminiClient(String apiKey, String baseUrl, String model, Duration connectTimeout, Duration requestTimeout,
+            boolean gzip, Function<String, CircuitBreaker> newBreaker) {
+        this.apiKey = apiKey;
+        this.gzip = gzip;
+        this.newBreaker = newBreaker;
+        this.baseUrl = baseUrl;
+        this.model = model;
+        this.requestTimeout = requestTimeout;
+        this.http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .build();
+    }
+
+    /**
+     * Creates a client from GEMINI_BASE_URL, GEMINI_MODEL, GEMINI_CONNECT_TIMEOUT_MS, GEMINI_TIMEOUT_MS,
+     * GEMINI_GZIP and the GEMINI_CIRCUIT_* breaker settings
+     * Point GEMINI_BASE_URL at mock/MockGeminiServer.java to test without the real API
+     */
+    static GeminiClient fromConfig(String apiKey) {
+        String baseUrl = TutorConfig.get("GEMINI_BASE_URL", DEFAULT_BASE_URL);
+        while (baseUrl.endsWith("/")) {
+            baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+        }
+        return new GeminiClient(apiKey,
+                baseUrl,
+                TutorConfig.get("GEMINI_MODEL", "gemini-2.5-flash"),
+                Duration.ofMillis(TutorConfig.getLong("GEMINI_CONNECT_TIMEOUT_MS", 5_000)),
+                Duration.ofMillis(TutorConfig.getLong("GEMINI_TIMEOUT_MS", 60_000)),
+                TutorConfig.getBoolean("GEMINI_GZIP", true),
+                breakerFactory());
+    }
+
+    private static Function<String, CircuitBreaker> breakerFactory() {
+        if (!TutorConfig.getBoolean("GEMINI_CIRCUIT_ENABLED", true)) {
+            return null;
+        }
+        int window = TutorConfig.getInt("GEMINI_CIRCUIT_WINDOW", 20);
+        int minCalls = TutorConfig.getInt("GEMINI_CIRCUIT_MIN_CALLS", 10);
+        double failureRate = TutorConfig.getDouble("GEMINI_CIRCUIT_FAILURE_RATE", 0.5);
+        long openMillis = TutorConfig.getLong("GEMINI_CIRCUIT_OPEN_MS", 30_000);
+        return model -> new CircuitBreaker(model, window, minCalls, failureRate, openMillis);
+    }
+
+    String model() {
+        return model;
+    }
+
+    String baseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Breakers by model, sorted for stable metrics output
+     */
+    Map<String, CircuitBreaker> breakers() {
+        return new TreeMap<>(breakers);
+    }
+
+    /**
+     * Seconds until the main model's breaker lets calls through again, at least 1
+     */
+    long retryAfterSeconds() {
+        CircuitBreaker breaker = breakers.get(model);
+        return breaker == null ? 1 : breaker.retryAfterSeconds();
+    }
+
+    /**
+     * Returns the endpoint URL for a model method such as generateContent
+     * The API key travels in a header so it never shows up in logged URLs
+     */
+    String endpoint(String method) {
+        return endpoint(model, method);
+    }
+
+    String endpoint(String model, String method) {
+        return baseUrl + "/models/" + model + ":" + method;
+    }
+
+    /**
+     * Posts a JSON payload to the given model method without blocking the caller
+     */
+    <T> CompletableFuture<HttpResponse<T>> send(String method, GeminiPayload payload,
+            HttpResponse.BodyHandler<T> bodyHandler) {
+        return send(model, method, payload, bodyHandler);
+    }
+
+    /**
+     * Same as send, against another model such as a faster hedge target
+     * Fails fast with UnavailableException while that model's breaker is open.
+     * The returned future is the client's own, so cancelling it aborts the call
+     */
+    <T> CompletableFuture<HttpResponse<T>> send(String model, String method, GeminiPayload payload,
+            HttpResponse.BodyHandler<T> bodyHandler) {
+        CircuitBreaker breaker = newBreaker == null ? null : breakers.computeIfAbsent(model, newBreaker);
+        if (breaker != null && !breaker.tryAcquire()) {
+            return CompletableFuture.failedFuture(new UnavailableException(model, breaker.retryAfterSeconds()));
+        }
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(endpoint(model, method)))
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/json")
+                .header("x-goog-api-key", apiKey == null ? "" : apiKey);
+        // Whole answers come back gzipped (read through HttpCompression.decoded); streams stay
+        // plain so each chunk is relayed as soon as it arrives instead of waiting on a compressor
+        if (gzip && !method.startsWith("stream")) {
+            builder.header("Accept-Encoding", "gzip");
+        }
+        HttpRequest request = builder.POST(payload.publisher()).build();
+        CompletableFuture<HttpResponse<T>> call = http.sendAsync(request, bodyHandler);
+        if (breaker != null) {
+            call.whenComplete((response, error) -> {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (cause instanceof CancellationException) {
+                    breaker.onIgnored();
+                } else if (cause != null || response.statusCode() == 429 || response.statusCode() >= 500) {
+                    breaker.onFailure();
+                } else {
+                    breaker.onSuccess();
+                }
+            });
+        }
+        return call;
+    }
+
+    /**
+     * A call refused because the model's circuit breaker is open
+     */
+    static final class UnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long retryAfterSeconds;
+
+        UnavailableException(String model, long retryAfterSeconds) {
+            super("Gemini model " + model + " is failing, calls paused for " + retryAfterSeconds + " s");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+    }
+}
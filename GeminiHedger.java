@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Hedged generateContent calls to cut Gemini's tail latency
+ * If the primary call has not answered within a delay taken from recent
+ * latencies (p95 by default), a second call goes to the hedge model and the
+ * first 200 wins; the other call is cancelled. Hedges are paid for out of a
+ * budget that grows by a fraction of a hedge per call, and each one also
+ * needs a quota token that nobody is waiting for.
+ *
+ * Settings: HEDGE_ENABLED, HEDGE_MODEL, HEDGE_PERCENTILE, HEDGE_MIN_DELAY_MS,
+ * HEDGE_MAX_DELAY_MS, HEDGE_BUDGET, HEDGE_BURST, HEDGE_WINDOW
+ */
+final class GeminiHedger {
+
+    // Below this many samples the delay is HEDGE_MAX_DELAY_MS
+    private static final int MIN_SAMPLES = 20;
+
+    private final GeminiClient client;
+    private final String hedgeModel;
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long maxDelayNanos;
+    private final long creditPerCall;
+    private final long maxCredit;
+    private final int window;
+    private final BooleanSupplier quotaPermit;
+    private final ScheduledExecutorService timer;
+
+    // Primary latencies; replaced every HEDGE_WINDOW samples so the delay follows Gemini's current behaviour
+    private volatile LatencyHistogram current = new LatencyHistogram();
+    private volatile long delayNanos;
+    private volatile boolean delayFromWindow;
+
+    // Budget in thousandths of a hedge
+    private final AtomicLong credit;
+
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    GeminiHedger(GeminiClient client, String hedgeModel, double percentile, long minDelayMillis, long maxDelayMillis,
+            double budget, int burst, int window, BooleanSupplier quotaPermit) {
+        this.client = client;
+        this.hedgeModel = hedgeModel;
+        this.percentile = percentile;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(minDelayMillis, maxDelayMillis));
+        this.creditPerCall = Math.round(budget * 1000);
+        this.maxCredit = Math.max(1, burst) * 1000L;
+        this.window = Math.max(MIN_SAMPLES, window);
+        this.quotaPermit = quotaPermit;
+        this.delayNanos = maxDelayNanos;
+        this.credit = new AtomicLong(maxCredit);
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gemini-hedge");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a hedger from HEDGE_* settings; null unless HEDGE_ENABLED=true
+     */
+    static GeminiHedger fromConfig(GeminiClient client, BooleanSupplier quotaPermit) {
+        if (!TutorConfig.getBoolean("HEDGE_ENABLED", false)) {
+            return null;
+        }
+        GeminiHedger hedger = new GeminiHedger(client,
+                TutorConfig.get("HEDGE_MODEL", client.model()),
+                TutorConfig.getDouble("HEDGE_PERCENTILE", 0.95),
+                TutorConfig.getLong("HEDGE_MIN_DELAY_MS", 500),
+                TutorConfig.getLong("HEDGE_MAX_DELAY_MS", 10_000),
+                TutorConfig.getDouble("HEDGE_BUDGET", 0.05),
+                TutorConfig.getInt("HEDGE_BURST", 10),
+                TutorConfig.getInt("HEDGE_WINDOW", 500),
+                quotaPermit);
+        System.out.println("🏁 Hedging slow Gemini calls after p" + Math.round(hedger.percentile * 100)
+                + " to " + hedger.hedgeModel + " (budget " + Math.round(hedger.creditPerCall / 10.0) + "% of calls)");
+        return hedger;
+    }
+
+    /**
+     * Sends a call that may be hedged; completes with the winning response
+     * The loser is cancelled, and its body closed if it already arrived
+     */
+    CompletableFuture<HttpResponse<InputStream>> send(String method, GeminiPayload payload) {
+        credit.accumulateAndGet(creditPerCall, (have, add) -> Math.min(maxCredit, have + add));
+
+        Race race = new Race(method, payload);
+        long start = System.nanoTime();
+        race.primary = client.send(method, payload, HttpResponse.BodyHandlers.ofInputStream());
+        race.timer = timer.schedule(race::hedge, delayNanos(), TimeUnit.NANOSECONDS);
+        race.primary.whenComplete((response, error) -> {
+            race.timer.cancel(false);
+            // A cancelled primary still records how long it had been running, a lower bound
+            recordPrimary(System.nanoTime() - start);
+            race.finished(race.primary, response, error);
+        });
+        return race.result;
+    }
+
+    long hedges() {
+        return hedges.sum();
+    }
+
+    long hedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    long skipped() {
+        return skipped.sum();
+    }
+
+    long delayMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(delayNanos());
+    }
+
+    private long delayNanos() {
+        if (delayFromWindow) {
+            return delayNanos;
+        }
+        // Until the first window fills, use what has been seen so far
+        LatencyHistogram histogram = current;
+        return histogram.count() < MIN_SAMPLES ? maxDelayNanos : clamp(histogram.quantileNanos(percentile));
+    }
+
+    private void recordPrimary(long nanos) {
+        LatencyHistogram histogram = current;
+        histogram.record(nanos);
+        if (histogram.count() >= window) {
+            synchronized (this) {
+                if (current == histogram) {
+                    delayNanos = clamp(histogram.quantileNanos(percentile));
+                    delayFromWindow = true;
+                    current = new LatencyHistogram();
+                }
+            }
+        }
+    }
+
+    private long clamp(long nanos) {
+        return Math.max(minDelayNanos, Math.min(maxDelayNanos, nanos));
+    }
+
+    private boolean takeCredit() {
+        long have;
+        do {
+            have = credit.get();
+            if (have < 1000) {
+                return false;
+            }
+        } while (!credit.compareAndSet(have, have - 1000));
+        return true;
+    }
+
+    private static void discard(HttpResponse<InputStream> response) {
+        if (response != null) {
+            try {
+                response.body().close();
+            } catch (IOException e) {
+                // nothing left to do with the loser
+            }
+        }
+    }
+
+    /**
+     * One logical call: the primary, possibly a hedge, and the result they race for
+     */
+    private final class Race {
+        final String method;
+        final GeminiPayload payload;
+        final CompletableFuture<HttpResponse<InputStream>> result = new CompletableFuture<>();
+        CompletableFuture<HttpResponse<InputStream>> primary;
+        CompletableFuture<HttpResponse<InputStream>> hedge;
+        ScheduledFuture<?> timer;
+
+        // Guarded by this; settled is set before the loser is cancelled, whose callback runs inline
+        private boolean settled;
+        private int running = 1;
+        private HttpResponse<InputStream> failedResponse;
+        private Throwable failedError;
+
+        Race(String method, GeminiPayload payload) {
+            this.method = method;
+            this.payload = payload;
+        }
+
+        void hedge() {
+            synchronized (this) {
+                if (settled || running == 0) {
+                    return;
+                }
+                if (!takeCredit()) {
+                    skipped.increment();
+                    return;
+                }
+                if (!quotaPermit.getAsBoolean()) {
+                    credit.addAndGet(1000);
+                    skipped.increment();
+                    return;
+                }
+                running++;
+            }
+            hedges.increment();
+            TutorLog.info("gemini", "🏁 Gemini slower than " + delayMillis() + " ms, hedging to " + hedgeModel);
+            CompletableFuture<HttpResponse<InputStream>> call =
+                    client.send(hedgeModel, method, payload, HttpResponse.BodyHandlers.ofInputStream());
+            synchronized (this) {
+                hedge = call;
+            }
+            call.whenComplete((response, error) -> finished(call, response, error));
+        }
+
+        void finished(CompletableFuture<HttpResponse<InputStream>> call, HttpResponse<InputStream> response,
+                Throwable error) {
+            CompletableFuture<HttpResponse<InputStream>> loser = null;
+            HttpResponse<InputStream> failed = null;
+            Throwable failure = null;
+            boolean won = false;
+            synchronized (this) {
+                running--;
+                if (settled) {
+                    discard(response);
+                    return;
+                }
+                if (error == null && response.statusCode() == 200) {
+                    settled = true;
+                    won = true;
+                    loser = call == primary ? hedge : primary;
+                    discard(failedResponse);
+                } else if (running > 0) {
+                    // Keep the first failure in case the other call fails too
+                    if (failedResponse == null && failedError == null) {
+                        failedResponse = response;
+                        failedError = error;
+                    } else {
+                        discard(response);
+                    }
+                    return;
+                } else if (failedResponse != null || failedError != null) {
+                    settled = true;
+                    discard(response);
+                    failed = failedResponse;
+                    failure = failedError;
+                } else {
+                    settled = true;
+                    failed = response;
+                    failure = error;
+                }
+            }
+
+            if (won) {
+                if (call != primary) {
+                    hedgeWins.increment();
+                }
+                if (loser != null) {
+                    loser.cancel(true);
+                }
+                result.complete(response);
+            } else if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(failed);
+            }
+        }
+    }
+}
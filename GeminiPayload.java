@@ -0,0 +1,187 @@
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A generateContent request body assembled from precompiled UTF-8 segments
+ * The JSON skeleton, generation config and each subject's system prompt are
+ * encoded once; a request only escapes and encodes its own text. The segments
+ * go to the HTTP client as they are and are never joined into one String.
+ */
+final class GeminiPayload {
+
+    // Sampling settings sent with every question
+    private static final String GENERATION_CONFIG = "\"generationConfig\":{" +
+            "\"temperature\":0.7," +
+            "\"maxOutputTokens\":2048," +
+            "\"topP\":0.95," +
+            "\"topK\":40" +
+            "}";
+
+    private static final byte[] CONTENTS_OPEN = utf8("{\"contents\":[");
+    private static final byte[] USER_TURN = utf8("{\"role\":\"user\",\"parts\":[{\"text\":\"");
+    private static final byte[] MODEL_TURN = utf8("{\"role\":\"model\",\"parts\":[{\"text\":\"");
+    private static final byte[] TURN_CLOSE = utf8("\"}]},");
+    private static final byte[] CLOSE = utf8("\"}]}]," + GENERATION_CONFIG + "}");
+
+    // Subject -> CONTENTS_OPEN + USER_TURN + system prompt, and the same without CONTENTS_OPEN
+    private static final ConcurrentHashMap<String, byte[]> QUESTION_HEADS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, byte[]> FOLLOW_UP_HEADS = new ConcurrentHashMap<>();
+
+    private static final byte[] HEX = utf8("0123456789abcdef");
+
+    private final List<byte[]> segments;
+    private final long length;
+
+    private GeminiPayload(List<byte[]> segments) {
+        this.segments = segments;
+        long total = 0;
+        for (byte[] segment : segments) {
+            total += segment.length;
+        }
+        this.length = total;
+    }
+
+    /**
+     * Encodes the templates for these subjects ahead of the first question
+     */
+    static void precompile(Iterable<String> subjects) {
+        for (String subject : subjects) {
+            questionHead(subject);
+            followUpHead(subject);
+        }
+    }
+
+    /**
+     * A single question asked with the subject's system prompt
+     */
+    static GeminiPayload question(String subject, String question) {
+        List<byte[]> segments = new ArrayList<>(3);
+        segments.add(questionHead(subject));
+        segments.add(escape(question));
+        segments.add(CLOSE);
+        return new GeminiPayload(segments);
+    }
+
+    /**
+     * Earlier questions and answers, then the new question with the subject's system prompt
+     */
+    static GeminiPayload followUp(String subject, List<ConversationLog.Turn> history, String question) {
+        if (history.isEmpty()) {
+            return question(subject, question);
+        }
+        List<byte[]> segments = new ArrayList<>(history.size() * 6 + 4);
+        segments.add(CONTENTS_OPEN);
+        for (ConversationLog.Turn turn : history) {
+            segments.add(USER_TURN);
+            segments.add(escape(turn.question));
+            segments.add(TURN_CLOSE);
+            segments.add(MODEL_TURN);
+            segments.add(escape(turn.answer));
+            segments.add(TURN_CLOSE);
+        }
+        segments.add(followUpHead(subject));
+        segments.add(escape(question));
+        segments.add(CLOSE);
+        return new GeminiPayload(segments);
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * Streams the segments with a known Content-Length; each call starts a fresh publisher
+     */
+    HttpRequest.BodyPublisher publisher() {
+        return HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofByteArrays(segments), length);
+    }
+
+    /**
+     * The whole body as text, for debug logging only
+     */
+    @Override
+    public String toString() {
+        byte[] body = new byte[(int) length];
+        int at = 0;
+        for (byte[] segment : segments) {
+            System.arraycopy(segment, 0, body, at, segment.length);
+            at += segment.length;
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] questionHead(String subject) {
+        return QUESTION_HEADS.computeIfAbsent(subject, s -> concat(CONTENTS_OPEN, followUpHead(s)));
+    }
+
+    private static byte[] followUpHead(String subject) {
+        return FOLLOW_UP_HEADS.computeIfAbsent(subject, s -> concat(USER_TURN, escape(systemPrompt(s) + "\n\nQuestion: ")));
+    }
+
+    private static String systemPrompt(String subject) {
+        return "You are an AI tutor specializing in " + subject +
+                ". Provide clear, educational explanations. Keep responses concise and helpful.";
+    }
+
+    /**
+     * UTF-8 encodes text and JSON-escapes the bytes
+     * Encoding is a single intrinsic copy; a second array is only made when
+     * something needs escaping. Bytes of multi-byte characters are all >= 0x80,
+     * so they are never mistaken for a quote or control character.
+     */
+    static byte[] escape(String text) {
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        int extra = 0;
+        for (byte b : raw) {
+            if (b >= 0 && b < 0x20) {
+                extra += b == '\n' || b == '\r' || b == '\t' ? 1 : 5;
+            } else if (b == '"' || b == '\\') {
+                extra++;
+            }
+        }
+        if (extra == 0) {
+            return raw;
+        }
+
+        byte[] out = new byte[raw.length + extra];
+        int at = 0;
+        for (byte b : raw) {
+            if (b >= 0 && b < 0x20) {
+                out[at++] = '\\';
+                if (b == '\n') {
+                    out[at++] = 'n';
+                } else if (b == '\r') {
+                    out[at++] = 'r';
+                } else if (b == '\t') {
+                    out[at++] = 't';
+                } else {
+                    out[at++] = 'u';
+                    out[at++] = '0';
+                    out[at++] = '0';
+                    out[at++] = HEX[b >> 4];
+                    out[at++] = HEX[b & 0xF];
+                }
+            } else {
+                if (b == '"' || b == '\\') {
+                    out[at++] = '\\';
+                }
+                out[at++] = b;
+            }
+        }
+        return out;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = new byte[first.length + second.length];
+        System.arraycopy(first, 0, joined, 0, first.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
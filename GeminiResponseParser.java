@@ -0,0 +1,393 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single-pass streaming parser for generateContent responses
+ * Reads straight from the response stream and keeps only the fields the
+ * tutor needs: every candidate's text parts, finishReason, usageMetadata,
+ * promptFeedback.blockReason and error details; everything else is skipped
+ */
+final class GeminiResponseParser {
+
+    /**
+     * The fields picked out of one response (or one stream chunk)
+     */
+    static final class Result {
+        final List<StringBuilder> candidateTexts = new ArrayList<>();
+        final List<String> finishReasons = new ArrayList<>();
+        boolean sawParts;
+        boolean sawText;
+        boolean empty = true;
+        String blockReason;
+        String errorMessage;
+        String errorStatus;
+        int errorCode = -1;
+        int promptTokens = -1;
+        int candidatesTokens = -1;
+        int totalTokens = -1;
+
+        /**
+         * All text parts of the first candidate, concatenated
+         */
+        String text() {
+            return candidateTexts.isEmpty() ? "" : candidateTexts.get(0).toString();
+        }
+
+        /**
+         * The first candidate's finishReason, or null while still generating
+         */
+        String finishReason() {
+            return finishReasons.isEmpty() ? null : finishReasons.get(0);
+        }
+
+        boolean hasError() {
+            return errorMessage != null || errorCode != -1;
+        }
+    }
+
+    // Key ids tracked on the path stack; anything else is OTHER
+    private static final String[] KEYS = { null, "candidates", "content", "parts", "text", "finishReason",
+            "usageMetadata", "promptTokenCount", "candidatesTokenCount", "totalTokenCount", "error", "message",
+            "code", "status", "promptFeedback", "blockReason" };
+    private static final int OTHER = 0, CANDIDATES = 1, CONTENT = 2, PARTS = 3, TEXT = 4, FINISH_REASON = 5,
+            USAGE = 6, PROMPT_TOKENS = 7, CANDIDATES_TOKENS = 8, TOTAL_TOKENS = 9, ERROR = 10, MESSAGE = 11,
+            CODE = 12, STATUS = 13, PROMPT_FEEDBACK = 14, BLOCK_REASON = 15;
+    private static final int ARRAY = -1;
+    private static final int MAX_DEPTH = 64;
+
+    private final Reader in;
+    private final char[] buf = new char[8192];
+    private int pos;
+    private int limit;
+
+    private final char[] keyBuf = new char[32];
+    private final int[] path = new int[MAX_DEPTH];
+    private final int[] index = new int[MAX_DEPTH];
+    private int depth;
+    private final Result result = new Result();
+
+    private GeminiResponseParser(Reader in) {
+        this.in = in;
+    }
+
+    static Result parse(InputStream in) throws IOException {
+        return parse(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    static Result parse(Reader in) throws IOException {
+        GeminiResponseParser parser = new GeminiResponseParser(in);
+        if (parser.skipWhitespace() != -1) {
+            parser.result.empty = false;
+            parser.parseValue();
+        }
+        return parser.result;
+    }
+
+    private void parseValue() throws IOException {
+        int c = skipWhitespace();
+        if (c == '{') {
+            parseObject();
+        } else if (c == '[') {
+            parseArray();
+        } else if (c == '"') {
+            pos++;
+            parseStringValue();
+        } else if (c == -1) {
+            throw malformed("unexpected end of input");
+        } else {
+            parseLiteral();
+        }
+    }
+
+    private void parseObject() throws IOException {
+        pos++; // '{'
+        if (skipWhitespace() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            if (skipWhitespace() != '"') {
+                throw malformed("expected a key");
+            }
+            pos++;
+            int key = readKey();
+            if (skipWhitespace() != ':') {
+                throw malformed("expected ':'");
+            }
+            pos++;
+            push(key);
+            parseValue();
+            depth--;
+
+            int c = skipWhitespace();
+            pos++;
+            if (c == '}') {
+                return;
+            } else if (c != ',') {
+                throw malformed("expected ',' or '}'");
+            }
+        }
+    }
+
+    private void parseArray() throws IOException {
+        pos++; // '['
+        push(ARRAY);
+        if (skipWhitespace() == ']') {
+            pos++;
+            depth--;
+            return;
+        }
+        while (true) {
+            parseValue();
+            index[depth - 1]++;
+
+            int c = skipWhitespace();
+            pos++;
+            if (c == ']') {
+                depth--;
+                return;
+            } else if (c != ',') {
+                throw malformed("expected ',' or ']'");
+            }
+        }
+    }
+
+    private void parseStringValue() throws IOException {
+        if (depth == 6 && last(TEXT) && path[4] == ARRAY && path[3] == PARTS && path[2] == CONTENT
+                && path[1] == ARRAY && path[0] == CANDIDATES) {
+            // candidates[i].content.parts[j].text - decoded straight into the candidate's buffer
+            result.sawText = true;
+            readString(candidateText(index[1]));
+        } else if (depth == 3 && last(FINISH_REASON) && path[1] == ARRAY && path[0] == CANDIDATES) {
+            int candidate = index[1];
+            while (result.finishReasons.size() <= candidate) {
+                result.finishReasons.add(null);
+            }
+            result.finishReasons.set(candidate, readSmallString());
+        } else if (depth == 2 && path[0] == ERROR && last(MESSAGE)) {
+            result.errorMessage = readSmallString();
+        } else if (depth == 2 && path[0] == ERROR && last(STATUS)) {
+            result.errorStatus = readSmallString();
+        } else if (depth == 2 && path[0] == PROMPT_FEEDBACK && last(BLOCK_REASON)) {
+            result.blockReason = readSmallString();
+        } else {
+            readString(null);
+        }
+    }
+
+    private void parseLiteral() throws IOException {
+        long number = 0;
+        boolean negative = false;
+        boolean integral = true;
+        int c;
+        while ((c = peek()) != -1 && c != ',' && c != '}' && c != ']' && !isWhitespace(c)) {
+            pos++;
+            if (c >= '0' && c <= '9') {
+                number = number * 10 + (c - '0');
+            } else if (c == '-') {
+                negative = true;
+            } else {
+                integral = false;
+            }
+        }
+        if (!integral) {
+            return; // true, false, null or a fraction - none are tracked
+        }
+        int value = (int) Math.min(Integer.MAX_VALUE, negative ? -number : number);
+        if (depth == 2 && path[0] == USAGE) {
+            if (last(PROMPT_TOKENS)) {
+                result.promptTokens = value;
+            } else if (last(CANDIDATES_TOKENS)) {
+                result.candidatesTokens = value;
+            } else if (last(TOTAL_TOKENS)) {
+                result.totalTokens = value;
+            }
+        } else if (depth == 2 && path[0] == ERROR && last(CODE)) {
+            result.errorCode = value;
+        }
+    }
+
+    private StringBuilder candidateText(int candidate) {
+        result.sawParts = true;
+        while (result.candidateTexts.size() <= candidate) {
+            result.candidateTexts.add(new StringBuilder());
+        }
+        return result.candidateTexts.get(candidate);
+    }
+
+    private boolean last(int key) {
+        return path[depth - 1] == key;
+    }
+
+    private void push(int key) throws IOException {
+        if (depth == MAX_DEPTH) {
+            throw malformed("nesting too deep");
+        }
+        path[depth] = key;
+        index[depth] = 0;
+        depth++;
+        // An empty parts array still counts as "parts seen"
+        if (key == ARRAY && depth == 5 && path[3] == PARTS && path[0] == CANDIDATES) {
+            result.sawParts = true;
+        }
+    }
+
+    /**
+     * Reads an object key and maps it to a tracked id without allocating
+     */
+    private int readKey() throws IOException {
+        int length = 0;
+        boolean tooLong = false;
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw malformed("unterminated key");
+            } else if (c == '"') {
+                break;
+            } else if (c == '\\') {
+                c = readEscape();
+            }
+            if (length < keyBuf.length) {
+                keyBuf[length++] = (char) c;
+            } else {
+                tooLong = true;
+            }
+        }
+        if (tooLong) {
+            return OTHER;
+        }
+        for (int id = 1; id < KEYS.length; id++) {
+            String key = KEYS[id];
+            if (key.length() == length && matches(key, length)) {
+                return id;
+            }
+        }
+        return OTHER;
+    }
+
+    private boolean matches(String key, int length) {
+        for (int i = 0; i < length; i++) {
+            if (key.charAt(i) != keyBuf[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readSmallString() throws IOException {
+        StringBuilder value = new StringBuilder();
+        readString(value);
+        return value.toString();
+    }
+
+    /**
+     * Reads the rest of a string value, decoding escapes into out (or dropping it when out is null)
+     */
+    private void readString(StringBuilder out) throws IOException {
+        while (true) {
+            // Copy runs of plain chars in bulk
+            int start = pos;
+            while (pos < limit) {
+                char c = buf[pos];
+                if (c == '"' || c == '\\') {
+                    break;
+                }
+                pos++;
+            }
+            if (out != null && pos > start) {
+                out.append(buf, start, pos - start);
+            }
+            if (pos == limit) {
+                if (fill() == -1) {
+                    throw malformed("unterminated string");
+                }
+                continue;
+            }
+            char c = buf[pos++];
+            if (c == '"') {
+                return;
+            }
+            char decoded = readEscape();
+            if (out != null) {
+                out.append(decoded);
+            }
+        }
+    }
+
+    /**
+     * Decodes the escape after a backslash, including \\uXXXX
+     */
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw malformed("bad \\u escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                // Surrogate pairs arrive as two escapes and combine naturally in UTF-16
+                return (char) value;
+            case -1:
+                throw malformed("unterminated escape");
+            default:
+                // \\, \" and \/ stand for themselves
+                return (char) c;
+        }
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c;
+        while ((c = peek()) != -1 && isWhitespace(c)) {
+            pos++;
+        }
+        return c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && fill() == -1) {
+            return -1;
+        }
+        return buf[pos];
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && fill() == -1) {
+            return -1;
+        }
+        return buf[pos++];
+    }
+
+    private int fill() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) {
+            return -1;
+        }
+        pos = 0;
+        limit = n;
+        return n;
+    }
+
+    private IOException malformed(String reason) {
+        return new IOException("Malformed JSON response: " + reason);
+    }
+}
@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * gzip/deflate for responses and for Gemini's replies
+ * Outgoing bodies are compressed only when the client accepts it and they
+ * are at least COMPRESSION_MIN_BYTES; small JSON replies cost more to
+ * compress than they save. Deflaters are pooled because each one holds
+ * native memory and a fresh one per response is slow to set up.
+ *
+ * Settings: COMPRESSION_ENABLED, COMPRESSION_MIN_BYTES, COMPRESSION_LEVEL
+ */
+final class HttpCompression {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final boolean ENABLED = TutorConfig.getBoolean("COMPRESSION_ENABLED", true);
+    private static final int MIN_BYTES = TutorConfig.getInt("COMPRESSION_MIN_BYTES", 1_024);
+    private static final int LEVEL = Math.max(1, Math.min(9, TutorConfig.getInt("COMPRESSION_LEVEL", 6)));
+
+    // Fixed gzip header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    // Raw deflate for gzip (which adds its own header and trailer), zlib-wrapped for "deflate"
+    private static final ArrayBlockingQueue<Deflater> RAW_POOL =
+            new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2);
+    private static final ArrayBlockingQueue<Deflater> ZLIB_POOL =
+            new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final LongAdder compressed = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+
+    private HttpCompression() {
+    }
+
+    static boolean enabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Picks gzip or deflate from an Accept-Encoding header, or null for identity
+     * Follows q-values; gzip wins a tie because every browser handles it
+     */
+    static String negotiate(String acceptEncoding) {
+        if (!ENABLED || acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String[] fields = part.split(";");
+            String coding = fields[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1.0;
+            for (int i = 1; i < fields.length; i++) {
+                String param = fields[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzip = q;
+            } else if (coding.equals(DEFLATE)) {
+                deflate = q;
+            } else if (coding.equals("*")) {
+                any = q;
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    /**
+     * Compresses body with the negotiated coding, or returns null when it
+     * is below the threshold or would not get smaller
+     */
+    static byte[] compress(byte[] body, String encoding) {
+        if (encoding == null || body.length < MIN_BYTES) {
+            return null;
+        }
+        boolean gzip = GZIP.equals(encoding);
+        ArrayBlockingQueue<Deflater> pool = gzip ? RAW_POOL : ZLIB_POOL;
+        Deflater deflater = pool.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, gzip);
+        }
+        try {
+            int offset = gzip ? GZIP_HEADER.length : 0;
+            byte[] out = new byte[offset + body.length / 2 + 64];
+            if (gzip) {
+                System.arraycopy(GZIP_HEADER, 0, out, 0, offset);
+            }
+            deflater.setInput(body);
+            deflater.finish();
+            int length = offset;
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    // Incompressible enough that it would not be worth sending compressed
+                    if (out.length >= body.length) {
+                        return null;
+                    }
+                    out = Arrays.copyOf(out, Math.min(body.length + 64, out.length * 2));
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            if (gzip) {
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                out = Arrays.copyOf(out, length + 8);
+                writeIntLE(out, length, (int) crc.getValue());
+                writeIntLE(out, length + 4, body.length);
+                length += 8;
+            }
+            if (length >= body.length) {
+                return null;
+            }
+            compressed.increment();
+            bytesIn.add(body.length);
+            bytesOut.add(length);
+            return length == out.length ? out : Arrays.copyOf(out, length);
+        } finally {
+            deflater.reset();
+            if (!pool.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * The body of a Gemini response, decompressed as it is read if Gemini sent it compressed
+     */
+    static InputStream decoded(HttpResponse<InputStream> response) throws IOException {
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("").trim().toLowerCase(Locale.ROOT);
+        InputStream body = response.body();
+        try {
+            switch (encoding) {
+                case GZIP:
+                case "x-gzip":
+                    return new GZIPInputStream(body, 8_192);
+                case DEFLATE:
+                    return new InflaterInputStream(body);
+                default:
+                    return body;
+            }
+        } catch (IOException e) {
+            body.close();
+            throw e;
+        }
+    }
+
+    static long compressed() {
+        return compressed.sum();
+    }
+
+    static long bytesIn() {
+        return bytesIn.sum();
+    }
+
+    static long bytesOut() {
+        return bytesOut.sum();
+    }
+
+    private static void writeIntLE(byte[] out, int at, int value) {
+        out[at] = (byte) value;
+        out[at + 1] = (byte) (value >>> 8);
+        out[at + 2] = (byte) (value >>> 16);
+        out[at + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-memory, lock-free latency histogram with log-linear buckets
+ * Values are kept in microseconds: exact below 16 us, then 16 linear
+ * sub-buckets per power of two (about 6% relative error) up to ~19 hours
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_OCTAVE = 36;
+    private static final int BUCKETS = (MAX_OCTAVE - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sumNanos = new LongAdder();
+
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1_000);
+        counts.incrementAndGet(index(micros));
+        sumNanos.add(Math.max(0, nanos));
+    }
+
+    long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    long sumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * Number of recorded values at or below the given bound, to bucket precision
+     */
+    long countAtOrBelow(long nanos) {
+        long micros = nanos / 1_000;
+        long total = 0;
+        for (int i = 0; i < BUCKETS && upperBoundMicros(i) <= micros + 1; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Upper bound of the bucket holding the q-th quantile (0.0-1.0), or 0 when empty
+     */
+    long quantileNanos(double q) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return upperBoundMicros(i) * 1_000;
+            }
+        }
+        return upperBoundMicros(BUCKETS - 1) * 1_000;
+    }
+
+    private static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int octave = 63 - Long.numberOfLeadingZeros(micros);
+        if (octave > MAX_OCTAVE) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (octave - SUB_BITS)) - SUB_BUCKETS;
+        return (octave - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Exclusive upper bound of a bucket in microseconds
+     */
+    private static long upperBoundMicros(int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        int octave = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << (octave - SUB_BITS);
+    }
+}
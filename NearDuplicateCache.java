@@ -0,0 +1,343 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Second-tier answer cache that also matches paraphrased questions
+ * Questions are shingled into word n-grams, summarized with MinHash and
+ * indexed with LSH banding, so a lookup only inspects a handful of
+ * candidates no matter how many answers are stored. Question words are left
+ * out of the shingles but must agree, so "how does X work" and "why X" stay apart
+ */
+final class NearDuplicateCache {
+
+    // Filler words that do not change what is being asked
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+            "a", "an", "the", "is", "are", "was", "what", "whats", "how", "does", "do", "why", "when",
+            "in", "of", "on", "for", "to", "and", "or", "with", "about", "me", "i", "it", "its",
+            "can", "could", "you", "please", "explain", "describe", "define", "tell", "give",
+            "briefly", "simple", "terms", "mean", "means", "meant", "by"));
+
+    // Question words that change the answer wanted; anything else asks what something is
+    private static final Set<String> INTENTS = new HashSet<>(Arrays.asList("how", "why", "when"));
+
+    // Candidates kept per LSH bucket, newest first
+    private static final int BUCKET_WIDTH = 8;
+
+    private final int bands;
+    private final int rows;
+    private final int shingleSize;
+    private final double threshold;
+    private final long ttlNanos;
+    private final long[] seeds;
+
+    // Ring of stored entries; a slot is reused once the ring wraps around
+    private final Entry[] slots;
+    private long nextSeq;
+
+    // LSH band key -> sequence numbers of entries sharing that band
+    private final Map<Long, long[]> buckets = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, Set<String>> subjectWords = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    NearDuplicateCache(int maxEntries, double threshold, int bands, int rows, int shingleSize, long ttlSeconds) {
+        this.slots = new Entry[Math.max(1, maxEntries)];
+        this.threshold = threshold;
+        this.bands = bands;
+        this.rows = rows;
+        this.shingleSize = Math.max(1, shingleSize);
+        this.ttlNanos = ttlSeconds * 1_000_000_000L;
+        this.seeds = new long[bands * rows];
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < seeds.length; i++) {
+            seed = mix(seed + i);
+            seeds[i] = seed;
+        }
+    }
+
+    /**
+     * Creates a cache from the NEAR_CACHE_* settings, or null when disabled
+     */
+    static NearDuplicateCache fromConfig() {
+        if (!TutorConfig.getBoolean("NEAR_CACHE_ENABLED", true)) {
+            return null;
+        }
+        return new NearDuplicateCache(
+                TutorConfig.getInt("NEAR_CACHE_MAX_ENTRIES", 100_000),
+                TutorConfig.getDouble("NEAR_CACHE_SIMILARITY", 0.8),
+                TutorConfig.getInt("NEAR_CACHE_BANDS", 16),
+                TutorConfig.getInt("NEAR_CACHE_ROWS", 4),
+                TutorConfig.getInt("NEAR_CACHE_SHINGLE", 1),
+                TutorConfig.getLong("CACHE_TTL_SECONDS", 24 * 60 * 60));
+    }
+
+    /**
+     * Returns the answer of the most similar stored question in the same subject and with the same question word,
+     * or null when nothing reaches the similarity threshold
+     */
+    String get(String subject, String question) {
+        int[] shingles = shingles(subject, question);
+        if (shingles.length == 0) {
+            misses.increment();
+            return null;
+        }
+        String scope = scope(subject, question);
+        long[] bandKeys = bandKeys(scope, signature(shingles));
+        long now = System.nanoTime();
+
+        Entry best = null;
+        double bestSimilarity = threshold;
+        lock.readLock().lock();
+        try {
+            for (long bandKey : bandKeys) {
+                long[] bucket = buckets.get(bandKey);
+                if (bucket == null) {
+                    continue;
+                }
+                for (long seq : bucket) {
+                    Entry entry = seq == 0 ? null : slots[(int) ((seq - 1) % slots.length)];
+                    if (entry == null || entry.seq != seq || entry == best
+                            || entry.expiresAt - now <= 0 || !entry.scope.equals(scope)) {
+                        continue;
+                    }
+                    double similarity = jaccard(shingles, entry.shingles);
+                    if (similarity >= bestSimilarity) {
+                        best = entry;
+                        bestSimilarity = similarity;
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (best == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return best.answer;
+    }
+
+    void put(String subject, String question, String answer) {
+        int[] shingles = shingles(subject, question);
+        if (shingles.length == 0) {
+            return;
+        }
+        String scope = scope(subject, question);
+        long[] bandKeys = bandKeys(scope, signature(shingles));
+
+        lock.writeLock().lock();
+        try {
+            long seq = ++nextSeq;
+            int slot = (int) ((seq - 1) % slots.length);
+            Entry old = slots[slot];
+            if (old != null) {
+                unindex(old);
+            }
+            Entry entry = new Entry(seq, scope, shingles, bandKeys, answer, System.nanoTime() + ttlNanos);
+            slots[slot] = entry;
+            for (long bandKey : bandKeys) {
+                long[] bucket = buckets.computeIfAbsent(bandKey, k -> new long[BUCKET_WIDTH]);
+                // Shift right so the newest entry is checked first
+                System.arraycopy(bucket, 0, bucket, 1, BUCKET_WIDTH - 1);
+                bucket[0] = seq;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Removes an overwritten entry from its buckets so the index stays bounded
+     */
+    private void unindex(Entry entry) {
+        for (long bandKey : entry.bandKeys) {
+            long[] bucket = buckets.get(bandKey);
+            if (bucket == null) {
+                continue;
+            }
+            boolean empty = true;
+            for (int i = 0; i < bucket.length; i++) {
+                if (bucket[i] == entry.seq) {
+                    bucket[i] = 0;
+                }
+                empty &= bucket[i] == 0;
+            }
+            if (empty) {
+                buckets.remove(bandKey);
+            }
+        }
+    }
+
+    /**
+     * Hashes the question's word n-grams into a sorted, de-duplicated array
+     * Stop words and words naming the subject itself are dropped, since the
+     * subject is already part of the match ("os" vs "operating systems")
+     */
+    int[] shingles(String subject, String question) {
+        Set<String> ignored = subjectWords.computeIfAbsent(subject, NearDuplicateCache::wordsForSubject);
+        String[] words = AnswerCache.normalizeQuestion(question).split(" ");
+        String[] kept = new String[words.length];
+        int count = 0;
+        for (String word : words) {
+            // Stop words are checked before stemming, which would turn "does" into "doe"
+            if (word.isEmpty() || STOP_WORDS.contains(word)) {
+                continue;
+            }
+            word = stem(word);
+            if (!ignored.contains(word)) {
+                kept[count++] = word;
+            }
+        }
+        if (count == 0) {
+            return new int[0];
+        }
+
+        int n = Math.min(shingleSize, count);
+        int[] hashes = new int[count - n + 1];
+        for (int i = 0; i < hashes.length; i++) {
+            int h = 1;
+            for (int j = i; j < i + n; j++) {
+                h = 31 * h + kept[j].hashCode();
+            }
+            hashes[i] = h;
+        }
+        Arrays.sort(hashes);
+        int unique = 1;
+        for (int i = 1; i < hashes.length; i++) {
+            if (hashes[i] != hashes[unique - 1]) {
+                hashes[unique++] = hashes[i];
+            }
+        }
+        return Arrays.copyOf(hashes, unique);
+    }
+
+    /**
+     * The subject plus the question's first how/why/when, which a match must share
+     */
+    private static String scope(String subject, String question) {
+        for (String word : AnswerCache.normalizeQuestion(question).split(" ")) {
+            if (INTENTS.contains(word)) {
+                return subject + "|" + word;
+            }
+        }
+        return subject;
+    }
+
+    private static Set<String> wordsForSubject(String subject) {
+        Set<String> words = new HashSet<>();
+        StringBuilder initials = new StringBuilder();
+        for (String word : subject.toLowerCase(Locale.ROOT).split(" ")) {
+            if (!word.isEmpty()) {
+                words.add(stem(word));
+                initials.append(word.charAt(0));
+            }
+        }
+        if (initials.length() > 1) {
+            words.add(initials.toString());
+        }
+        return words;
+    }
+
+    /**
+     * Strips a plural 's' so "systems" and "system" shingle alike
+     */
+    private static String stem(String word) {
+        if (word.length() > 3 && word.endsWith("s") && !word.endsWith("ss")) {
+            return word.substring(0, word.length() - 1);
+        }
+        return word;
+    }
+
+    private long[] signature(int[] shingles) {
+        long[] signature = new long[seeds.length];
+        for (int i = 0; i < seeds.length; i++) {
+            long min = Long.MAX_VALUE;
+            for (int shingle : shingles) {
+                long h = mix(shingle ^ seeds[i]);
+                if (h < min) {
+                    min = h;
+                }
+            }
+            signature[i] = min;
+        }
+        return signature;
+    }
+
+    private long[] bandKeys(String scope, long[] signature) {
+        long[] keys = new long[bands];
+        long scopeHash = scope.hashCode();
+        for (int b = 0; b < bands; b++) {
+            long h = mix(scopeHash * 31 + b);
+            for (int r = 0; r < rows; r++) {
+                h = mix(h ^ signature[b * rows + r]);
+            }
+            keys[b] = h;
+        }
+        return keys;
+    }
+
+    /**
+     * Exact Jaccard similarity of two sorted shingle sets
+     */
+    private static double jaccard(int[] a, int[] b) {
+        int i = 0, j = 0, common = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                common++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (double) common / (a.length + b.length - common);
+    }
+
+    /**
+     * SplitMix64 finalizer
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static final class Entry {
+        final long seq;
+        final String scope;
+        final int[] shingles;
+        final long[] bandKeys;
+        final String answer;
+        final long expiresAt;
+
+        Entry(long seq, String scope, int[] shingles, long[] bandKeys, String answer, long expiresAt) {
+            this.seq = seq;
+            this.scope = scope;
+            this.shingles = shingles;
+            this.bandKeys = bandKeys;
+            this.answer = answer;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,1307 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP/1.1 server on java.nio selectors, an alternative to com.sun.net.httpserver
+ * An acceptor thread hands connections round-robin to one event loop per
+ * core, and each loop does all reads and writes for its connections, so no
+ * connection ties up a thread. Requests are read into pooled direct buffers
+ * that a connection only holds while it has unread bytes. Connections stay
+ * open between requests, and pipelined requests are answered one at a
+ * time, in order. Handlers get a regular HttpExchange and run on the given
+ * executor, so the /ask handlers work unchanged. A handler may upgrade()
+ * its connection, which then carries another protocol (WebSocket) as a
+ * Tunnel.
+ *
+ * Settings: HTTP_NIO_LOOPS, HTTP_NIO_BUFFER_BYTES, HTTP_NIO_MAX_BODY_BYTES,
+ * HTTP_NIO_IDLE_TIMEOUT_MS
+ */
+final class NioHttpServer {
+
+    // A handler writing faster than its client reads waits once this much is queued
+    private static final int HIGH_WATER_BYTES = 256 * 1024;
+    // Upgraded connections waiting for room are let go again below this
+    private static final int LOW_WATER_BYTES = 64 * 1024;
+    private static final int RESPONSE_BUFFER_BYTES = 8_192;
+    // Request bodies start this big and double as bytes arrive, up to their Content-Length
+    private static final int INITIAL_BODY_BYTES = 8_192;
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerSocketChannel acceptor;
+    private final EventLoop[] loops;
+    private final Executor executor;
+    private final BufferPool buffers;
+    private final int maxBodyBytes;
+    private final long idleTimeoutNanos;
+    private final Map<String, HttpHandler> contexts = new ConcurrentHashMap<>();
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+
+    // Date header, formatted at most once a second
+    private volatile long dateSecond;
+    private volatile String date;
+
+    NioHttpServer(InetSocketAddress address, int loops, int bufferBytes, int maxBodyBytes, long idleTimeoutMillis,
+            Executor executor) throws IOException {
+        this.executor = executor;
+        this.maxBodyBytes = Math.max(0, maxBodyBytes);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.buffers = new BufferPool(Math.max(1_024, bufferBytes), Math.max(1, loops) * 64);
+        this.loops = new EventLoop[Math.max(1, loops)];
+        this.acceptor = ServerSocketChannel.open();
+        try {
+            acceptor.bind(address, 1_024);
+            for (int i = 0; i < this.loops.length; i++) {
+                this.loops[i] = new EventLoop(i);
+            }
+        } catch (IOException e) {
+            acceptor.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Binds to address with HTTP_NIO_* settings; throws BindException if the port is taken
+     */
+    static NioHttpServer create(InetSocketAddress address, Executor executor) throws IOException {
+        return new NioHttpServer(address,
+                TutorConfig.getInt("HTTP_NIO_LOOPS", Runtime.getRuntime().availableProcessors()),
+                TutorConfig.getInt("HTTP_NIO_BUFFER_BYTES", 16_384),
+                TutorConfig.getInt("HTTP_NIO_MAX_BODY_BYTES", 1_048_576),
+                TutorConfig.getLong("HTTP_NIO_IDLE_TIMEOUT_MS", 30_000),
+                executor);
+    }
+
+    /**
+     * Routes requests whose path starts with path to handler; the longest match wins, as in HttpServer
+     */
+    void createContext(String path, HttpHandler handler) {
+        contexts.put(path, handler);
+    }
+
+    void start() {
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        Thread thread = new Thread(this::accept, "http-acceptor");
+        thread.setDaemon(false);
+        thread.start();
+        System.out.println("⚡ Serving HTTP on " + loops.length + " NIO event loops");
+    }
+
+    long connections() {
+        return connections.get();
+    }
+
+    /**
+     * Sends count bytes of file as part of a fixed-length response body and closes file
+     * On this server the kernel copies them from the page cache straight to the
+     * socket; on any other HttpExchange they go through the response stream
+     */
+    static void transferFile(HttpExchange exchange, FileChannel file, long position, long count) throws IOException {
+        if (exchange instanceof NioHttpServer.Exchange) {
+            ((NioHttpServer.Exchange) exchange).stream.sendFile(file, position, count);
+            return;
+        }
+        try (file) {
+            WritableByteChannel target = Channels.newChannel(exchange.getResponseBody());
+            long sent = 0;
+            while (sent < count) {
+                long written = file.transferTo(position + sent, count - sent, target);
+                if (written <= 0) {
+                    throw new IOException("File shrank while it was being sent");
+                }
+                sent += written;
+            }
+        }
+    }
+
+    long requests() {
+        return requests.sum();
+    }
+
+    private void accept() {
+        int next = 0;
+        while (acceptor.isOpen()) {
+            try {
+                SocketChannel channel = acceptor.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // Usually out of file descriptors; back off instead of spinning
+                TutorLog.error("http", "❌ Accept failed: " + e.getMessage());
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the bytes of a connection taken over by upgrade(), on its event loop
+     */
+    interface TunnelHandler {
+        void onOpen(Tunnel tunnel);
+
+        /**
+         * Must consume all of data; a partial message is the handler's to keep
+         */
+        void onData(ByteBuffer data) throws IOException;
+
+        void onClosed();
+    }
+
+    /**
+     * A connection that stopped speaking HTTP after 101 Switching Protocols
+     */
+    interface Tunnel {
+        /**
+         * Queues bytes without waiting; false once the connection is closed
+         */
+        boolean send(ByteBuffer data);
+
+        /**
+         * Runs action once the queue has drained to the low-water mark (or the connection closed)
+         */
+        void whenWritable(Runnable action);
+
+        /**
+         * Stops reading from the client, so TCP pushes back on it, until resumed
+         */
+        void pauseReading(boolean paused);
+
+        /**
+         * Closes once everything queued has been written
+         */
+        void close();
+
+        /**
+         * Closes at once, dropping anything still queued
+         */
+        void abort();
+    }
+
+    /**
+     * True if exchange came from this kind of server and so can be upgraded
+     */
+    static boolean canUpgrade(HttpExchange exchange) {
+        return exchange instanceof NioHttpServer.Exchange;
+    }
+
+    /**
+     * Sends 101 with the response headers already set and hands the connection to handler
+     */
+    static void upgrade(HttpExchange exchange, TunnelHandler handler) throws IOException {
+        if (!canUpgrade(exchange)) {
+            throw new IOException("Only NioHttpServer connections can be upgraded");
+        }
+        ((NioHttpServer.Exchange) exchange).connection.upgradeTo = handler;
+        exchange.sendResponseHeaders(101, -1);
+    }
+
+    private HttpHandler route(String path) {
+        HttpHandler best = null;
+        int bestLength = -1;
+        for (Map.Entry<String, HttpHandler> context : contexts.entrySet()) {
+            String prefix = context.getKey();
+            if (path.startsWith(prefix) && prefix.length() > bestLength) {
+                best = context.getValue();
+                bestLength = prefix.length();
+            }
+        }
+        return best;
+    }
+
+    private String date() {
+        long second = System.currentTimeMillis() / 1_000;
+        String current = date;
+        if (current == null || second != dateSecond) {
+            current = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+            date = current;
+            dateSecond = second;
+        }
+        return current;
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 100: return "Continue";
+            case 101: return "Switching Protocols";
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 413: return "Payload Too Large";
+            case 429: return "Too Many Requests";
+            case 426: return "Upgrade Required";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            case 505: return "HTTP Version Not Supported";
+            default: return "";
+        }
+    }
+
+    /**
+     * Fixed-size direct buffers for reading requests, reused across connections
+     */
+    private static final class BufferPool {
+        private final int bufferBytes;
+        private final int maxPooled;
+        private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        BufferPool(int bufferBytes, int maxPooled) {
+            this.bufferBytes = bufferBytes;
+            this.maxPooled = maxPooled;
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer buffer = free.poll();
+            if (buffer == null) {
+                return ByteBuffer.allocateDirect(bufferBytes);
+            }
+            pooled.decrementAndGet();
+            return buffer;
+        }
+
+        void release(ByteBuffer buffer) {
+            buffer.clear();
+            if (pooled.incrementAndGet() <= maxPooled) {
+                free.offer(buffer);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * One selector thread and the connections registered with it
+     */
+    private final class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Only touched on this loop's thread
+        final Set<Connection> open = new HashSet<>();
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "http-loop-" + index);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Runs task on this loop's thread
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    Connection connection = new Connection(this, channel, key);
+                    key.attach(connection);
+                    open.add(connection);
+                    connections.incrementAndGet();
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.nanoTime();
+            while (true) {
+                try {
+                    selector.select(1_000);
+                } catch (IOException e) {
+                    TutorLog.error("http", "❌ Selector failed: " + e.getMessage());
+                    continue;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        TutorLog.error("http", "❌ Event loop task failed: " + e.getMessage(), e);
+                    }
+                }
+                Set<SelectionKey> selected = selector.selectedKeys();
+                for (SelectionKey key : selected) {
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flushOut();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        connection.closeNow();
+                    }
+                }
+                selected.clear();
+
+                long now = System.nanoTime();
+                if (now - lastSweep >= TimeUnit.SECONDS.toNanos(1)) {
+                    lastSweep = now;
+                    closeIdle(now);
+                }
+            }
+        }
+
+        /**
+         * Closes keep-alive connections that sat idle (or half-sent a request) past the timeout
+         */
+        private void closeIdle(long now) {
+            List<Connection> idle = new ArrayList<>();
+            for (Connection connection : open) {
+                // Upgraded connections keep themselves alive (WebSocket pings)
+                if (connection.active == null && connection.tunnel == null && now - connection.lastActive > idleTimeoutNanos) {
+                    idle.add(connection);
+                }
+            }
+            for (Connection connection : idle) {
+                connection.closeNow();
+            }
+        }
+    }
+
+    /**
+     * One client socket; request parsing runs on its loop, response bytes may come from any thread
+     */
+    private final class Connection implements Tunnel {
+        final EventLoop loop;
+        final SocketChannel channel;
+        final SelectionKey key;
+        final InetSocketAddress local;
+        final InetSocketAddress remote;
+
+        // Loop thread only
+        ByteBuffer in;
+        long lastActive = System.nanoTime();
+        Exchange active;
+        boolean closing;
+        boolean closed;
+        String method;
+        String target;
+        String protocol;
+        Headers headers;
+        byte[] body;
+        int bodyRead;
+        int bodyLength;
+        boolean continueSent;
+        TunnelHandler tunnel;
+        boolean readPaused;
+        // Set by upgrade() on a handler thread, taken over by the loop once the 101 is sent
+        volatile TunnelHandler upgradeTo;
+
+        // Guarded by this
+        private final List<Runnable> whenWritable = new ArrayList<>();
+        private final ArrayDeque<Outbound> out = new ArrayDeque<>();
+        private long outBytes;
+        private boolean flushScheduled;
+        private boolean open = true;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.local = (InetSocketAddress) channel.getLocalAddress();
+            this.remote = (InetSocketAddress) channel.getRemoteAddress();
+        }
+
+        void onReadable() throws IOException {
+            if (in == null) {
+                in = buffers.acquire();
+            }
+            int read = channel.read(in);
+            if (read < 0) {
+                closeNow();
+                return;
+            }
+            lastActive = System.nanoTime();
+            if (tunnel != null) {
+                deliver();
+            } else {
+                parse();
+            }
+        }
+
+        /**
+         * Hands everything buffered to the tunnel handler
+         */
+        private void deliver() throws IOException {
+            in.flip();
+            try {
+                tunnel.onData(in);
+            } finally {
+                in.clear();
+                buffers.release(in);
+                in = null;
+            }
+        }
+
+        /**
+         * Starts every complete request in the buffer, one at a time
+         */
+        private void parse() throws IOException {
+            while (active == null && !closing && in != null) {
+                in.flip();
+                boolean complete = false;
+                int error = 0;
+                try {
+                    complete = (method != null || readHead()) && readBody();
+                } catch (BadRequest e) {
+                    error = e.status;
+                }
+                in.compact();
+                boolean full = !in.hasRemaining();
+                if (in.position() == 0 || error != 0) {
+                    buffers.release(in);
+                    in = null;
+                }
+                if (error != 0) {
+                    reject(error);
+                    return;
+                }
+                if (!complete) {
+                    if (full && method == null) {
+                        reject(431);
+                    }
+                    return;
+                }
+                dispatch();
+            }
+        }
+
+        /**
+         * Reads the request line and headers; false if they have not all arrived
+         */
+        private boolean readHead() throws BadRequest {
+            // Blank lines before a request line are allowed
+            while (in.hasRemaining() && (in.get(in.position()) == '\r' || in.get(in.position()) == '\n')) {
+                in.position(in.position() + 1);
+            }
+            int start = in.position();
+            int end = -1;
+            for (int i = start; i + 3 < in.limit(); i++) {
+                if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                return false;
+            }
+            byte[] head = new byte[end - start];
+            in.get(head);
+            in.position(end + 4);
+
+            String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3) {
+                throw new BadRequest(400);
+            }
+            if (!requestLine[2].startsWith("HTTP/1.")) {
+                throw new BadRequest(505);
+            }
+            Headers parsed = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new BadRequest(400);
+                }
+                parsed.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            if (parsed.containsKey("Transfer-Encoding")) {
+                throw new BadRequest(501);
+            }
+            int length = 0;
+            String contentLength = parsed.getFirst("Content-Length");
+            if (contentLength != null) {
+                try {
+                    length = Integer.parseInt(contentLength.trim());
+                } catch (NumberFormatException e) {
+                    throw new BadRequest(400);
+                }
+                if (length < 0) {
+                    throw new BadRequest(400);
+                }
+                if (length > maxBodyBytes) {
+                    throw new BadRequest(413);
+                }
+            }
+            method = requestLine[0];
+            target = requestLine[1];
+            protocol = requestLine[2];
+            headers = parsed;
+            // Grown as bytes arrive, so a large Content-Length alone does not reserve memory
+            body = new byte[Math.min(length, INITIAL_BODY_BYTES)];
+            bodyRead = 0;
+            bodyLength = length;
+            continueSent = false;
+            return true;
+        }
+
+        /**
+         * Copies buffered body bytes; false until the whole Content-Length has arrived
+         */
+        private boolean readBody() {
+            int take = Math.min(in.remaining(), bodyLength - bodyRead);
+            if (bodyRead + take > body.length) {
+                body = Arrays.copyOf(body, Math.min(bodyLength, Math.max(bodyRead + take, body.length * 2)));
+            }
+            in.get(body, bodyRead, take);
+            bodyRead += take;
+            if (bodyRead == bodyLength) {
+                return true;
+            }
+            if (!continueSent && "100-continue".equalsIgnoreCase(headers.getFirst("Expect"))) {
+                continueSent = true;
+                enqueue(ByteBuffer.wrap(CONTINUE));
+            }
+            return false;
+        }
+
+        private void dispatch() {
+            String connectionHeader = headers.getFirst("Connection");
+            // HTTP/1.0 clients get one response per connection
+            boolean keepAlive = "HTTP/1.1".equals(protocol)
+                    ? !"close".equalsIgnoreCase(connectionHeader)
+                    : false;
+            URI uri;
+            try {
+                uri = new URI(target);
+            } catch (URISyntaxException e) {
+                reject(400);
+                return;
+            }
+            Exchange exchange = new Exchange(this, method, uri, protocol, headers, body, keepAlive);
+            method = null;
+            target = null;
+            protocol = null;
+            headers = null;
+            body = null;
+            active = exchange;
+            updateInterest();
+            requests.increment();
+
+            String path = uri.getRawPath() == null ? "/" : uri.getRawPath();
+            HttpHandler handler = route(path);
+            executor.execute(() -> {
+                try {
+                    if (handler == null) {
+                        exchange.sendResponseHeaders(404, -1);
+                    } else {
+                        handler.handle(exchange);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    TutorLog.error("http", "❌ Handler failed: " + e.getMessage(), e);
+                    exchange.close();
+                }
+            });
+        }
+
+        /**
+         * Answers a request that could not be parsed and closes once it is sent
+         */
+        private void reject(int status) {
+            String response = "HTTP/1.1 " + status + " " + reason(status) + "\r\nDate: " + date()
+                    + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+            closing = true;
+            enqueue(ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII)));
+            updateInterest();
+        }
+
+        /**
+         * Called on the loop once the active exchange's response is complete
+         */
+        void responseDone(boolean keepAlive) {
+            active = null;
+            lastActive = System.nanoTime();
+            if (upgradeTo != null && tunnel == null && !closed) {
+                tunnel = upgradeTo;
+                tunnel.onOpen(this);
+                updateInterest();
+                try {
+                    // The client may have sent its first message right behind the handshake
+                    if (in != null) {
+                        deliver();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    closeNow();
+                }
+                return;
+            }
+            if (!keepAlive) {
+                closing = true;
+                flushOut();
+                return;
+            }
+            updateInterest();
+            try {
+                // A pipelined request may already be waiting in the buffer
+                parse();
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        /**
+         * Queues response bytes from any thread, waiting while too much is queued already
+         */
+        void send(Outbound data) throws IOException {
+            boolean schedule;
+            synchronized (this) {
+                if (!open) {
+                    data.release();
+                    throw new IOException("Connection closed");
+                }
+                out.add(data);
+                outBytes += data.remaining;
+                schedule = !flushScheduled;
+                flushScheduled = true;
+            }
+            if (schedule) {
+                loop.execute(this::flushOut);
+            }
+            synchronized (this) {
+                try {
+                    while (open && outBytes > HIGH_WATER_BYTES) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while the client caught up");
+                }
+                if (!open) {
+                    throw new IOException("Connection closed");
+                }
+            }
+        }
+
+        /**
+         * Queues bytes on the loop thread itself, never waiting
+         */
+        private void enqueue(ByteBuffer data) {
+            synchronized (this) {
+                out.add(new Outbound(data));
+                outBytes += data.remaining();
+                flushScheduled = true;
+            }
+            flushOut();
+        }
+
+        /**
+         * Writes queued bytes until the socket would block; runs on the loop
+         */
+        void flushOut() {
+            if (closed) {
+                return;
+            }
+            try {
+                while (true) {
+                    Outbound next;
+                    synchronized (this) {
+                        next = out.peek();
+                        if (next == null) {
+                            flushScheduled = false;
+                            notifyAll();
+                            break;
+                        }
+                    }
+                    long written = next.writeTo(channel);
+                    List<Runnable> ready = null;
+                    synchronized (this) {
+                        outBytes -= written;
+                        if (next.remaining == 0) {
+                            out.poll();
+                            next.release();
+                        }
+                        if (outBytes <= HIGH_WATER_BYTES) {
+                            notifyAll();
+                        }
+                        if (outBytes <= LOW_WATER_BYTES && !whenWritable.isEmpty()) {
+                            ready = new ArrayList<>(whenWritable);
+                            whenWritable.clear();
+                        }
+                    }
+                    if (ready != null) {
+                        ready.forEach(Runnable::run);
+                    }
+                    if (next.remaining > 0) {
+                        // Socket buffer full: carry on when the selector says it is writable
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (closing && active == null) {
+                    closeNow();
+                } else {
+                    updateInterest();
+                }
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        /**
+         * Reads only between requests, so a busy connection pushes back on its client
+         */
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            boolean pending;
+            synchronized (this) {
+                pending = !out.isEmpty();
+            }
+            int ops = (active == null && !closing && !readPaused ? SelectionKey.OP_READ : 0)
+                    | (pending ? SelectionKey.OP_WRITE : 0);
+            key.interestOps(ops);
+        }
+
+        /**
+         * Closes from any thread
+         */
+        @Override
+        public void abort() {
+            loop.execute(this::closeNow);
+        }
+
+        @Override
+        public boolean send(ByteBuffer data) {
+            boolean schedule;
+            synchronized (this) {
+                if (!open) {
+                    return false;
+                }
+                out.add(new Outbound(data));
+                outBytes += data.remaining();
+                schedule = !flushScheduled;
+                flushScheduled = true;
+            }
+            if (schedule) {
+                loop.execute(this::flushOut);
+            }
+            return true;
+        }
+
+        @Override
+        public void whenWritable(Runnable action) {
+            synchronized (this) {
+                if (open && outBytes > LOW_WATER_BYTES) {
+                    whenWritable.add(action);
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        @Override
+        public void pauseReading(boolean paused) {
+            loop.execute(() -> {
+                readPaused = paused;
+                updateInterest();
+            });
+        }
+
+        @Override
+        public void close() {
+            loop.execute(() -> {
+                closing = true;
+                flushOut();
+            });
+        }
+
+        void closeNow() {
+            if (closed) {
+                return;
+            }
+            List<Runnable> drained;
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+            if (in != null) {
+                buffers.release(in);
+                in = null;
+            }
+            synchronized (this) {
+                open = false;
+                for (Outbound pending : out) {
+                    pending.release();
+                }
+                out.clear();
+                outBytes = 0;
+                notifyAll();
+                drained = new ArrayList<>(whenWritable);
+                whenWritable.clear();
+            }
+            loop.open.remove(this);
+            connections.decrementAndGet();
+            if (tunnel != null) {
+                tunnel.onClosed();
+            }
+            // Whoever waits for room learns the connection is gone by finding send() false
+            drained.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * The HttpExchange handlers see; response bytes go out through the connection's queue
+     */
+    private final class Exchange extends HttpExchange {
+        private final Connection connection;
+        private final String method;
+        private final URI uri;
+        private final String protocol;
+        private final Headers requestHeaders;
+        private final Headers responseHeaders = new Headers();
+        private final boolean keepAlive;
+        private final ResponseStream stream = new ResponseStream();
+        private InputStream requestBody;
+        private OutputStream responseBody = stream;
+        private Map<String, Object> attributes;
+        private volatile int responseCode = -1;
+
+        Exchange(Connection connection, String method, URI uri, String protocol, Headers requestHeaders, byte[] body,
+                boolean keepAlive) {
+            this.connection = connection;
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.requestHeaders = requestHeaders;
+            this.requestBody = new ByteArrayInputStream(body);
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return uri;
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return method;
+        }
+
+        /**
+         * Not available on this server; the tutor's handlers do not use it
+         */
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            try {
+                requestBody.close();
+            } catch (IOException e) {
+                // in-memory, nothing to release
+            }
+            if (responseCode < 0) {
+                connection.abort();
+                return;
+            }
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // the connection is already being closed
+            }
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return requestBody;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return responseBody;
+        }
+
+        /**
+         * Same contract as HttpServer: length 0 streams chunked, -1 sends no body
+         */
+        @Override
+        public void sendResponseHeaders(int status, long length) throws IOException {
+            synchronized (stream) {
+                if (responseCode >= 0) {
+                    throw new IOException("Response headers already sent");
+                }
+                responseCode = status;
+                boolean head = "HEAD".equalsIgnoreCase(method);
+                boolean bodiless = status == 204 || status == 304 || status < 200;
+                StringBuilder builder = new StringBuilder(256)
+                        .append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n")
+                        .append("Date: ").append(date()).append("\r\n");
+                if (length == 0 && !head && !bodiless) {
+                    builder.append("Transfer-Encoding: chunked\r\n");
+                    stream.chunked = true;
+                } else if (!bodiless && !(head && length < 0)) {
+                    // A HEAD handler that knows the length sets Content-Length itself, as with HttpServer
+                    builder.append("Content-Length: ").append(Math.max(0, length)).append("\r\n");
+                    stream.remaining = head ? 0 : Math.max(0, length);
+                }
+                // An upgrade names its own Connection header
+                if (!keepAlive && status != 101) {
+                    builder.append("Connection: close\r\n");
+                }
+                for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                    for (String value : header.getValue()) {
+                        builder.append(header.getKey()).append(": ").append(value).append("\r\n");
+                    }
+                }
+                builder.append("\r\n");
+                stream.start(builder.toString().getBytes(StandardCharsets.ISO_8859_1), head);
+                // With no body to come the response is already complete, as in HttpServer
+                if (length < 0 || head || bodiless) {
+                    stream.close();
+                }
+            }
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return connection.remote;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return connection.local;
+        }
+
+        @Override
+        public String getProtocol() {
+            return protocol;
+        }
+
+        @Override
+        public synchronized Object getAttribute(String name) {
+            return attributes == null ? null : attributes.get(name);
+        }
+
+        @Override
+        public synchronized void setAttribute(String name, Object value) {
+            if (attributes == null) {
+                attributes = new HashMap<>();
+            }
+            attributes.put(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream input, OutputStream output) {
+            if (input != null) {
+                requestBody = input;
+            }
+            if (output != null) {
+                responseBody = output;
+            }
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+
+        /**
+         * Buffers body bytes and hands them to the connection as whole
+         * writes, chunk-framed when the length was not known up front
+         */
+        private final class ResponseStream extends OutputStream {
+            private byte[] buffer = new byte[RESPONSE_BUFFER_BYTES];
+            private int count;
+            // Response head still at the front of buffer
+            private int headLength;
+            private boolean chunked;
+            private boolean discard;
+            private long remaining;
+            private boolean closed;
+
+            synchronized void start(byte[] head, boolean discardBody) {
+                if (head.length > buffer.length) {
+                    buffer = new byte[head.length + RESPONSE_BUFFER_BYTES];
+                }
+                System.arraycopy(head, 0, buffer, 0, head.length);
+                count = head.length;
+                headLength = head.length;
+                discard = discardBody;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+                if (closed) {
+                    throw new IOException("Response already closed");
+                }
+                if (responseCode < 0) {
+                    throw new IOException("Response headers not sent");
+                }
+                if (discard || length == 0) {
+                    return;
+                }
+                if (!chunked) {
+                    if (length > remaining) {
+                        throw new IOException("More bytes than the Content-Length sent");
+                    }
+                    remaining -= length;
+                }
+                if (count + length > buffer.length) {
+                    flushBuffer(false);
+                }
+                if (length >= buffer.length) {
+                    // Too big to be worth copying into the buffer first
+                    byte[] frame = frame(bytes, offset, length, false);
+                    connection.send(new Outbound(ByteBuffer.wrap(frame)));
+                    return;
+                }
+                System.arraycopy(bytes, offset, buffer, count, length);
+                count += length;
+            }
+
+            /**
+             * Queues a file region behind what is buffered; the connection closes file once sent
+             */
+            synchronized void sendFile(FileChannel file, long position, long count) throws IOException {
+                try {
+                    if (closed || responseCode < 0 || chunked) {
+                        throw new IOException("File bodies need open fixed-length responses");
+                    }
+                    if (discard || count == 0) {
+                        file.close();
+                        return;
+                    }
+                    if (count > remaining) {
+                        throw new IOException("More bytes than the Content-Length sent");
+                    }
+                } catch (IOException e) {
+                    file.close();
+                    throw e;
+                }
+                remaining -= count;
+                flushBuffer(false);
+                connection.send(new Outbound(file, position, count));
+            }
+
+            @Override
+            public synchronized void flush() throws IOException {
+                if (!closed && count > 0) {
+                    flushBuffer(false);
+                }
+            }
+
+            @Override
+            public synchronized void close() throws IOException {
+                if (closed || responseCode < 0) {
+                    return;
+                }
+                closed = true;
+                if (!chunked && remaining > 0) {
+                    connection.abort();
+                    throw new IOException("Response closed " + remaining + " bytes short of its Content-Length");
+                }
+                try {
+                    flushBuffer(true);
+                } catch (IOException e) {
+                    connection.abort();
+                    throw e;
+                }
+                connection.loop.execute(() -> connection.responseDone(keepAlive));
+            }
+
+            private void flushBuffer(boolean last) throws IOException {
+                byte[] head = null;
+                if (headLength > 0) {
+                    head = new byte[headLength];
+                    System.arraycopy(buffer, 0, head, 0, headLength);
+                }
+                byte[] frame = frame(buffer, headLength, count - headLength, last);
+                count = 0;
+                headLength = 0;
+                if (head != null) {
+                    byte[] joined = new byte[head.length + frame.length];
+                    System.arraycopy(head, 0, joined, 0, head.length);
+                    System.arraycopy(frame, 0, joined, head.length, frame.length);
+                    frame = joined;
+                }
+                if (frame.length > 0) {
+                    connection.send(new Outbound(ByteBuffer.wrap(frame)));
+                }
+            }
+
+            /**
+             * Body bytes as they go on the wire: raw, or as a chunk plus the last-chunk marker
+             */
+            private byte[] frame(byte[] bytes, int offset, int length, boolean last) {
+                if (!chunked) {
+                    byte[] copy = new byte[length];
+                    System.arraycopy(bytes, offset, copy, 0, length);
+                    return copy;
+                }
+                byte[] size = length > 0
+                        ? (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII)
+                        : new byte[0];
+                int total = size.length + length + (length > 0 ? 2 : 0) + (last ? LAST_CHUNK.length : 0);
+                byte[] framed = new byte[total];
+                System.arraycopy(size, 0, framed, 0, size.length);
+                System.arraycopy(bytes, offset, framed, size.length, length);
+                int at = size.length + length;
+                if (length > 0) {
+                    framed[at++] = '\r';
+                    framed[at++] = '\n';
+                }
+                if (last) {
+                    System.arraycopy(LAST_CHUNK, 0, framed, at, LAST_CHUNK.length);
+                }
+                return framed;
+            }
+        }
+    }
+
+    /**
+     * Response bytes waiting for the socket: a buffer, or a file region sent with transferTo
+     */
+    private static final class Outbound {
+        private final ByteBuffer buffer;
+        private final FileChannel file;
+        private long position;
+        long remaining;
+
+        Outbound(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.file = null;
+            this.remaining = buffer.remaining();
+        }
+
+        Outbound(FileChannel file, long position, long count) {
+            this.buffer = null;
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        long writeTo(SocketChannel channel) throws IOException {
+            long written;
+            if (buffer != null) {
+                written = channel.write(buffer);
+            } else {
+                // The kernel copies straight from the page cache to the socket
+                written = file.transferTo(position, remaining, channel);
+                if (written == 0 && position >= file.size()) {
+                    throw new IOException("File shrank while it was being sent");
+                }
+                position += written;
+            }
+            remaining -= written;
+            return written;
+        }
+
+        void release() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // read-only, nothing was lost
+                }
+            }
+        }
+    }
+
+    /**
+     * A request that gets an error status instead of reaching a handler
+     */
+    private static final class BadRequest extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        BadRequest(int status) {
+            super(null, null, false, false);
+            this.status = status;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+}
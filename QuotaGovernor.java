@@ -0,0 +1,183 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client-side token bucket for the Gemini quota
+ * Calls are spaced out to the configured rate instead of bouncing off
+ * 429s. Callers that cannot get a token before their deadline, or that
+ * find the wait queue full, are turned away straight away
+ */
+final class QuotaGovernor {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private final int maxQueue;
+    private final ScheduledExecutorService scheduler;
+
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private double tokens;
+    private long lastRefill;
+    private boolean drainScheduled;
+
+    private final LongAdder granted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+
+    QuotaGovernor(double requestsPerMinute, int burst, int maxQueue) {
+        this.tokensPerNano = requestsPerMinute / 60e9;
+        this.capacity = Math.max(1, burst);
+        this.maxQueue = Math.max(0, maxQueue);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "quota-governor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a governor from GEMINI_RATE_PER_MINUTE, GEMINI_BURST and GEMINI_QUEUE_SIZE
+     */
+    static QuotaGovernor fromConfig() {
+        return new QuotaGovernor(
+                TutorConfig.getDouble("GEMINI_RATE_PER_MINUTE", 60),
+                TutorConfig.getInt("GEMINI_BURST", 5),
+                TutorConfig.getInt("GEMINI_QUEUE_SIZE", 100));
+    }
+
+    /**
+     * Completes with true once a token is granted, or with false when the
+     * caller would wait longer than maxWaitMillis or the queue is full
+     */
+    CompletableFuture<Boolean> acquire(long maxWaitMillis) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            refill(now);
+            if (queue.isEmpty() && tokens >= 1) {
+                tokens -= 1;
+                granted.increment();
+                return CompletableFuture.completedFuture(true);
+            }
+
+            // FIFO: this caller gets a token after everyone already queued
+            long waitNanos = nanosUntilTokens(queue.size() + 1);
+            if (queue.size() >= maxQueue || waitNanos > TimeUnit.MILLISECONDS.toNanos(maxWaitMillis)) {
+                rejected.increment();
+                return CompletableFuture.completedFuture(false);
+            }
+
+            Waiter waiter = new Waiter(now + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis));
+            queue.addLast(waiter);
+            queued.increment();
+            scheduleDrain(nanosUntilTokens(1));
+            return waiter.future;
+        }
+    }
+
+    /**
+     * Takes a token only if one is free right now and nobody is queued
+     * For optional calls such as hedges, which must never delay a question
+     */
+    boolean tryAcquire() {
+        synchronized (this) {
+            refill(System.nanoTime());
+            if (!queue.isEmpty() || tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+        }
+        granted.increment();
+        return true;
+    }
+
+    /**
+     * Seconds a turned-away caller should wait before trying again
+     */
+    synchronized long retryAfterSeconds() {
+        refill(System.nanoTime());
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(nanosUntilTokens(queue.size() + 1)) + 1);
+    }
+
+    long granted() {
+        return granted.sum();
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+
+    long queuedTotal() {
+        return queued.sum();
+    }
+
+    synchronized int waiting() {
+        return queue.size();
+    }
+
+    private void drain() {
+        List<Waiter> ready = new ArrayList<>();
+        List<Waiter> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (this) {
+            drainScheduled = false;
+            refill(now);
+            while (!queue.isEmpty()) {
+                Waiter head = queue.peekFirst();
+                if (head.deadline - now < 0) {
+                    expired.add(queue.pollFirst());
+                } else if (tokens >= 1) {
+                    tokens -= 1;
+                    ready.add(queue.pollFirst());
+                } else {
+                    break;
+                }
+            }
+            if (!queue.isEmpty()) {
+                scheduleDrain(nanosUntilTokens(1));
+            }
+        }
+
+        // Complete outside the lock so callbacks never run while holding it
+        for (Waiter waiter : ready) {
+            granted.increment();
+            waiter.future.complete(true);
+        }
+        for (Waiter waiter : expired) {
+            rejected.increment();
+            waiter.future.complete(false);
+        }
+    }
+
+    private void scheduleDrain(long delayNanos) {
+        if (!drainScheduled) {
+            drainScheduled = true;
+            scheduler.schedule(this::drain, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+
+    private long nanosUntilTokens(int needed) {
+        double missing = needed - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / tokensPerNano);
+    }
+
+    private static final class Waiter {
+        final long deadline;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        Waiter(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deadline-bounded retries for Gemini calls
+ * 429, 500, 502, 503 and 504 responses and connection errors are retried
+ * after a full-jitter exponential backoff (a random wait up to base * 2^n,
+ * capped), but never sooner than the response's Retry-After. A retry that
+ * could not finish before the deadline is not started; the last response
+ * is returned as it is instead.
+ *
+ * Settings: GEMINI_RETRY_MAX_ATTEMPTS, GEMINI_RETRY_BASE_MS,
+ * GEMINI_RETRY_MAX_BACKOFF_MS, GEMINI_RETRY_DEADLINE_MS
+ */
+final class RetryPolicy {
+
+    /**
+     * Starts one attempt; completes with null when the attempt could not be made (no quota or no concurrency slot)
+     */
+    interface Attempt<T> {
+        CompletableFuture<HttpResponse<T>> start(int attempt, long remainingMillis);
+    }
+
+    private final int maxAttempts;
+    private final long baseMillis;
+    private final long maxBackoffMillis;
+    private final long deadlineMillis;
+
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+
+    RetryPolicy(int maxAttempts, long baseMillis, long maxBackoffMillis, long deadlineMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseMillis = Math.max(1, baseMillis);
+        this.maxBackoffMillis = Math.max(this.baseMillis, maxBackoffMillis);
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    static RetryPolicy fromConfig() {
+        return new RetryPolicy(
+                TutorConfig.getInt("GEMINI_RETRY_MAX_ATTEMPTS", 3),
+                TutorConfig.getLong("GEMINI_RETRY_BASE_MS", 250),
+                TutorConfig.getLong("GEMINI_RETRY_MAX_BACKOFF_MS", 8_000),
+                TutorConfig.getLong("GEMINI_RETRY_DEADLINE_MS", 30_000));
+    }
+
+    /**
+     * Runs attempts until one succeeds, is not retryable, or time or attempts run out
+     * With retryErrors false only error statuses are retried, for calls whose
+     * output may already have been passed on when an exception hits
+     */
+    <T> CompletableFuture<HttpResponse<T>> run(Attempt<T> attempt, boolean retryErrors) {
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        attempt(attempt, retryErrors, 0, deadline, null, null, result);
+        return result;
+    }
+
+    long retries() {
+        return retries.sum();
+    }
+
+    long exhausted() {
+        return exhausted.sum();
+    }
+
+    private <T> void attempt(Attempt<T> attempt, boolean retryErrors, int number, long deadline,
+            HttpResponse<T> previous, Throwable previousError, CompletableFuture<HttpResponse<T>> result) {
+        CompletableFuture<HttpResponse<T>> call;
+        try {
+            call = attempt.start(number, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        } catch (RuntimeException e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+
+        call.whenComplete((response, error) -> {
+            if (error == null && response == null) {
+                // No quota or slot for this attempt: the previous outcome stands
+                if (number > 0) {
+                    exhausted.increment();
+                }
+                complete(result, previous, previousError);
+                return;
+            }
+            discard(previous);
+
+            String reason = error != null ? retryableError(error, retryErrors) : retryableStatus(response.statusCode());
+            if (reason == null) {
+                complete(result, response, error);
+                return;
+            }
+            if (number + 1 >= maxAttempts) {
+                exhausted.increment();
+                complete(result, response, error);
+                return;
+            }
+
+            long waitMillis = backoffMillis(number);
+            if (response != null) {
+                waitMillis = Math.max(waitMillis, retryAfterMillis(response));
+            }
+            if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis) >= deadline) {
+                exhausted.increment();
+                complete(result, response, error);
+                return;
+            }
+
+            retries.increment();
+            TutorMetrics.countRetry(reason);
+            TutorLog.warn("gemini", "🔁 Gemini " + reason + ", retry " + (number + 1) + " in " + waitMillis + " ms");
+            CompletableFuture.delayedExecutor(waitMillis, TimeUnit.MILLISECONDS).execute(
+                    () -> attempt(attempt, retryErrors, number + 1, deadline, response, error, result));
+        });
+    }
+
+    /**
+     * A random wait between 0 and base * 2^attempt, capped
+     */
+    private long backoffMillis(int attempt) {
+        long ceiling = baseMillis << Math.min(attempt, 30);
+        ceiling = ceiling <= 0 ? maxBackoffMillis : Math.min(maxBackoffMillis, ceiling);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Metric label for a retryable status, or null
+     */
+    private static String retryableStatus(int status) {
+        switch (status) {
+            case 429:
+            case 500:
+            case 502:
+            case 503:
+            case 504:
+                return String.valueOf(status);
+            default:
+                return null;
+        }
+    }
+
+    private static String retryableError(Throwable error, boolean retryErrors) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (!retryErrors || cause instanceof CancellationException || cause instanceof GeminiClient.UnavailableException) {
+            return null;
+        }
+        return cause instanceof IOException ? "io" : null;
+    }
+
+    /**
+     * Retry-After in seconds or as an HTTP date; 0 when absent or unreadable
+     */
+    static long retryAfterMillis(HttpResponse<?> response) {
+        String value = response.headers().firstValue("Retry-After").orElse(null);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime at = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(at.getZone()), at).toMillis());
+            } catch (DateTimeParseException unreadable) {
+                return 0;
+            }
+        }
+    }
+
+    private static <T> void complete(CompletableFuture<HttpResponse<T>> result, HttpResponse<T> response, Throwable error) {
+        if (error != null) {
+            result.completeExceptionally(error);
+        } else {
+            result.complete(response);
+        }
+    }
+
+    /**
+     * Closes the body of a response that is being replaced by a retry
+     */
+    private static void discard(HttpResponse<?> response) {
+        if (response != null && response.body() instanceof Closeable) {
+            try {
+                ((Closeable) response.body()).close();
+            } catch (IOException e) {
+                // the retry goes ahead regardless
+            }
+        }
+    }
+}
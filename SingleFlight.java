@@ -0,0 +1,61 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key into one upstream call
+ * The first caller starts the call, everyone arriving while it is in
+ * flight shares its future and gets the same result
+ */
+final class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    CompletableFuture<V> run(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            coalesced.increment();
+            TutorLog.info("cache", "🔗 Joined an identical in-flight request (" + coalesced.sum() + " coalesced so far)");
+            return existing;
+        }
+
+        calls.increment();
+        try {
+            call.get().whenComplete((value, error) -> {
+                // Forget the key before completing so late arrivals start a fresh call
+                inFlight.remove(key, mine);
+                if (error != null) {
+                    mine.completeExceptionally(error);
+                } else {
+                    mine.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, mine);
+            mine.completeExceptionally(e);
+        }
+        return mine;
+    }
+
+    /**
+     * Number of calls actually started
+     */
+    long calls() {
+        return calls.sum();
+    }
+
+    /**
+     * Number of callers that shared another caller's result
+     */
+    long coalesced() {
+        return coalesced.sum();
+    }
+
+    int inFlight() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,291 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves the frontend (index.html and friends) from the same origin as /ask,
+ * so the browser needs no CORS preflight before each question
+ * Files go out with FileChannel.transferTo, which on NioHttpServer never
+ * copies them through the JVM. Each file version gets a strong ETag from
+ * its content, so a browser revalidating gets 304 without a body. A
+ * precompressed name.gz next to a file is sent to browsers that accept
+ * gzip; text files without one are gzipped once in memory instead.
+ * Only known file types are served and dotfiles never are, so .env and
+ * the sources next to index.html stay private.
+ *
+ * Settings: STATIC_DIR, STATIC_MAX_AGE_SECONDS
+ */
+final class StaticAssets implements HttpHandler {
+
+    private static final Map<String, String> CONTENT_TYPES = Map.of(
+            "html", "text/html; charset=utf-8",
+            "css", "text/css; charset=utf-8",
+            "js", "text/javascript; charset=utf-8",
+            "json", "application/json; charset=utf-8",
+            "svg", "image/svg+xml",
+            "png", "image/png",
+            "jpg", "image/jpeg",
+            "ico", "image/x-icon",
+            "woff2", "font/woff2");
+
+    // Compressing these in memory is not worth it; they are compressed already
+    private static final Set<String> BINARY = Set.of("png", "jpg", "ico", "woff2");
+
+    // Larger files without a .gz are sent as they are rather than held in memory
+    private static final long MAX_IN_MEMORY_GZIP = 1 << 20;
+
+    private final Path root;
+    private final long maxAgeSeconds;
+    private final ConcurrentHashMap<Path, Asset> assets = new ConcurrentHashMap<>();
+
+    StaticAssets(Path root, long maxAgeSeconds) {
+        this.root = root.toAbsolutePath().normalize();
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    static StaticAssets fromConfig() {
+        return new StaticAssets(Paths.get(TutorConfig.get("STATIC_DIR", ".")),
+                TutorConfig.getLong("STATIC_MAX_AGE_SECONDS", 86_400));
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            serve(exchange);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        boolean head = "HEAD".equalsIgnoreCase(method);
+        if (!head && !"GET".equalsIgnoreCase(method)) {
+            exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        Path file = resolve(exchange.getRequestURI().getPath());
+        Asset asset = file == null ? null : load(file);
+        if (asset == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        boolean gzip = asset.gzipped() && HttpCompression.GZIP.equals(
+                HttpCompression.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding")));
+        String etag = gzip ? asset.gzipEtag : asset.etag;
+
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", asset.contentType);
+        headers.set("ETag", etag);
+        headers.set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(asset.modified.atOffset(ZoneOffset.UTC)));
+        // Pages are revalidated every time (a cheap 304) so a new index.html shows up at once;
+        // everything else may be reused for STATIC_MAX_AGE_SECONDS without asking
+        headers.set("Cache-Control", asset.contentType.startsWith("text/html")
+                ? "no-cache"
+                : "public, max-age=" + maxAgeSeconds);
+        if (asset.gzipped()) {
+            headers.set("Vary", "Accept-Encoding");
+        }
+
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        if (gzip) {
+            headers.set("Content-Encoding", HttpCompression.GZIP);
+        }
+        if (head) {
+            headers.set("Content-Length", String.valueOf(gzip ? asset.gzipLength() : asset.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+
+        if (gzip && asset.gzipBytes != null) {
+            exchange.sendResponseHeaders(200, asset.gzipBytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(asset.gzipBytes);
+            }
+            return;
+        }
+        Path source = gzip ? asset.gzipFile : asset.file;
+        long length = gzip ? asset.gzipLength() : asset.length;
+        FileChannel channel = FileChannel.open(source, StandardOpenOption.READ);
+        try {
+            exchange.sendResponseHeaders(200, length);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        NioHttpServer.transferFile(exchange, channel, 0, length);
+    }
+
+    /**
+     * Maps a request path to a servable file under root, or null
+     */
+    private Path resolve(String path) {
+        if (path == null || path.isEmpty() || path.endsWith("/")) {
+            path = (path == null ? "/" : path) + "index.html";
+        }
+        for (String segment : path.split("/")) {
+            if (segment.startsWith(".")) {
+                return null;
+            }
+        }
+        Path file = root.resolve(path.substring(1)).normalize();
+        if (!file.startsWith(root) || !CONTENT_TYPES.containsKey(extension(file))) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * The cached description of file, rebuilt when it or its .gz changes
+     */
+    private Asset load(Path file) throws IOException {
+        BasicFileAttributes attributes = attributes(file);
+        if (attributes == null || !attributes.isRegularFile()) {
+            assets.remove(file);
+            return null;
+        }
+        Instant modified = attributes.lastModifiedTime().toInstant();
+        Path gzipFile = file.resolveSibling(file.getFileName() + ".gz");
+        BasicFileAttributes gzipAttributes = attributes(gzipFile);
+        // A .gz older than its file is stale and ignored
+        if (gzipAttributes != null && (!gzipAttributes.isRegularFile()
+                || gzipAttributes.lastModifiedTime().toInstant().isBefore(modified))) {
+            gzipAttributes = null;
+        }
+        Instant gzipModified = gzipAttributes == null ? null : gzipAttributes.lastModifiedTime().toInstant();
+
+        Asset cached = assets.get(file);
+        if (cached != null && cached.length == attributes.size() && cached.modified.equals(modified)
+                && Objects.equals(cached.gzipModified, gzipModified)) {
+            return cached;
+        }
+
+        byte[] content = Files.readAllBytes(file);
+        String extension = extension(file);
+        byte[] gzipBytes = null;
+        if (gzipAttributes == null) {
+            gzipFile = null;
+            if (!BINARY.contains(extension) && content.length <= MAX_IN_MEMORY_GZIP) {
+                gzipBytes = HttpCompression.compress(content, HttpCompression.GZIP);
+            }
+        }
+
+        Asset asset = new Asset(file, CONTENT_TYPES.get(extension), content.length, modified, etag(content),
+                gzipFile, gzipModified, gzipAttributes == null ? -1 : gzipAttributes.size(), gzipBytes);
+        assets.put(file, asset);
+        return asset;
+    }
+
+    /**
+     * True if an If-None-Match header lists etag (weak comparison, as RFC 9110 asks for this header)
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static BasicFileAttributes attributes(Path file) throws IOException {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static String etag(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder tag = new StringBuilder(34).append('"');
+            for (int i = 0; i < 16; i++) {
+                tag.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return tag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    private static String extension(Path file) {
+        String name = file.getFileName() == null ? "" : file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * One file version and its gzip variant, if any
+     */
+    private static final class Asset {
+        final Path file;
+        final String contentType;
+        final long length;
+        final Instant modified;
+        final String etag;
+        final String gzipEtag;
+        final Path gzipFile;
+        final Instant gzipModified;
+        final long gzipFileLength;
+        final byte[] gzipBytes;
+
+        Asset(Path file, String contentType, long length, Instant modified, String etag, Path gzipFile,
+                Instant gzipModified, long gzipFileLength, byte[] gzipBytes) {
+            this.file = file;
+            this.contentType = contentType;
+            this.length = length;
+            this.modified = modified;
+            this.etag = etag;
+            // A different representation needs its own strong validator
+            this.gzipEtag = etag.substring(0, etag.length() - 1) + "-gz\"";
+            this.gzipFile = gzipFile;
+            this.gzipModified = gzipModified;
+            this.gzipFileLength = gzipFileLength;
+            this.gzipBytes = gzipBytes;
+        }
+
+        boolean gzipped() {
+            return gzipFile != null || gzipBytes != null;
+        }
+
+        long gzipLength() {
+            return gzipBytes != null ? gzipBytes.length : gzipFileLength;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Aho-Corasick automaton over the subject keywords
+ * Scans a message once, case-insensitively and without copying it. A
+ * keyword must start a word and may only be followed by an inflection
+ * ("networking", "threads", "queries", "java's"), so "os" does not match
+ * "cost" and "spring" does not match "offspring" or "springform". Compounds
+ * that should count ("multithreading", "mysql") are keywords of their own.
+ */
+final class SubjectMatcher {
+
+    private final String[] subjects;
+    private final int columns;
+    // Column of each ASCII char, 0 when the char appears in no keyword
+    private final int[] asciiColumns = new int[128];
+    // Sorted non-ASCII keyword chars and their columns
+    private final char[] otherChars;
+    private final int[] otherColumns;
+    // Fully resolved transitions: next[state * columns + column]
+    private final int[] next;
+    // Keyword ids that end in each state, including shorter suffix matches
+    private final int[][] outputs;
+
+    private final int[] keywordSubject;
+    private final int[] keywordLength;
+    private final boolean[] keywordStartsWord;
+    private final boolean[] keywordEndsWord;
+
+    // What may follow a keyword inside the same word
+    private static final String[] SUFFIXES = { "", "s", "es", "ing", "ed" };
+
+    /**
+     * Builds the automaton; subjects keep the map's iteration order, which
+     * decides ties between equally matched subjects
+     */
+    SubjectMatcher(Map<String, String[]> subjectKeywords) {
+        subjects = subjectKeywords.keySet().toArray(new String[0]);
+
+        // Expand keywords with the plural a suffix does not cover ("query" -> "queries")
+        List<String> keywords = new ArrayList<>();
+        List<Integer> owners = new ArrayList<>();
+        for (int s = 0; s < subjects.length; s++) {
+            for (String keyword : subjectKeywords.get(subjects[s])) {
+                for (String form : forms(keyword.toLowerCase(Locale.ROOT))) {
+                    keywords.add(form);
+                    owners.add(s);
+                }
+            }
+        }
+
+        TreeSet<Character> alphabet = new TreeSet<>();
+        for (String keyword : keywords) {
+            for (char c : keyword.toCharArray()) {
+                alphabet.add(c);
+            }
+        }
+        columns = alphabet.size() + 1;
+        List<Character> others = new ArrayList<>();
+        int column = 1;
+        for (char c : alphabet) {
+            if (c < 128) {
+                asciiColumns[c] = column++;
+            } else {
+                others.add(c);
+            }
+        }
+        otherChars = new char[others.size()];
+        otherColumns = new int[others.size()];
+        for (int i = 0; i < others.size(); i++) {
+            otherChars[i] = others.get(i);
+            otherColumns[i] = column++;
+        }
+
+        // Build the trie
+        List<int[]> trie = new ArrayList<>();
+        List<List<Integer>> ends = new ArrayList<>();
+        trie.add(new int[columns]);
+        ends.add(new ArrayList<>());
+        keywordSubject = new int[keywords.size()];
+        keywordLength = new int[keywords.size()];
+        keywordStartsWord = new boolean[keywords.size()];
+        keywordEndsWord = new boolean[keywords.size()];
+        for (int k = 0; k < keywords.size(); k++) {
+            String keyword = keywords.get(k);
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                int col = column(keyword.charAt(i));
+                if (trie.get(state)[col] == 0) {
+                    trie.get(state)[col] = trie.size();
+                    trie.add(new int[columns]);
+                    ends.add(new ArrayList<>());
+                }
+                state = trie.get(state)[col];
+            }
+            ends.get(state).add(k);
+            keywordSubject[k] = owners.get(k);
+            keywordLength[k] = keyword.length();
+            keywordStartsWord[k] = isWordChar(keyword.charAt(0));
+            keywordEndsWord[k] = isWordChar(keyword.charAt(keyword.length() - 1));
+        }
+
+        // Breadth-first pass turns the trie into a DFA using failure links
+        int states = trie.size();
+        next = new int[states * columns];
+        outputs = new int[states][];
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        outputs[0] = toArray(ends.get(0));
+        for (int col = 0; col < columns; col++) {
+            int child = trie.get(0)[col];
+            next[col] = child;
+            if (child != 0) {
+                queue.add(child);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            List<Integer> merged = new ArrayList<>(ends.get(state));
+            for (int k : outputs[fail[state]]) {
+                merged.add(k);
+            }
+            outputs[state] = toArray(merged);
+            for (int col = 0; col < columns; col++) {
+                int child = trie.get(state)[col];
+                if (child != 0) {
+                    fail[child] = next[fail[state] * columns + col];
+                    next[state * columns + col] = child;
+                    queue.add(child);
+                } else {
+                    next[state * columns + col] = next[fail[state] * columns + col];
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns how many keyword hits each subject has, in subject order
+     */
+    int[] countHits(CharSequence text) {
+        int[] counts = new int[subjects.length];
+        int state = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            state = next[state * columns + column(Character.toLowerCase(text.charAt(i)))];
+            for (int k : outputs[state]) {
+                int start = i - keywordLength[k] + 1;
+                if (keywordStartsWord[k] && start > 0 && isWordChar(text.charAt(start - 1))) {
+                    continue;
+                }
+                if (keywordEndsWord[k] && !endsWithSuffix(text, i + 1)) {
+                    continue;
+                }
+                counts[keywordSubject[k]]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the subject with the most keyword hits, or null if none match
+     */
+    String detect(CharSequence text) {
+        int[] counts = countHits(text);
+        int best = -1;
+        for (int s = 0; s < counts.length; s++) {
+            if (counts[s] > 0 && (best == -1 || counts[s] > counts[best])) {
+                best = s;
+            }
+        }
+        return best == -1 ? null : subjects[best];
+    }
+
+    private int column(char c) {
+        if (c < 128) {
+            return asciiColumns[c];
+        }
+        int i = Arrays.binarySearch(otherChars, c);
+        return i < 0 ? 0 : otherColumns[i];
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * True if the rest of the word starting at from is empty or one of SUFFIXES
+     */
+    private static boolean endsWithSuffix(CharSequence text, int from) {
+        int end = from;
+        while (end < text.length() && isWordChar(text.charAt(end))) {
+            end++;
+        }
+        for (String suffix : SUFFIXES) {
+            if (suffix.length() != end - from) {
+                continue;
+            }
+            int i = 0;
+            while (i < suffix.length() && Character.toLowerCase(text.charAt(from + i)) == suffix.charAt(i)) {
+                i++;
+            }
+            if (i == suffix.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The keyword plus the plural SUFFIXES cannot make ("query" -> "queries")
+     */
+    private static List<String> forms(String keyword) {
+        List<String> forms = new ArrayList<>();
+        forms.add(keyword);
+        int n = keyword.length();
+        if (n > 1 && keyword.charAt(n - 1) == 'y' && "aeiou".indexOf(keyword.charAt(n - 2)) == -1) {
+            forms.add(keyword.substring(0, n - 1) + "ies");
+        }
+        return forms;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+}
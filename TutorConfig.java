@@ -0,0 +1,112 @@
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Server settings loaded from .env file or environment variable
+ */
+final class TutorConfig {
+
+    // Values from the .env file take precedence over the environment
+    private static final Map<String, String> ENV_FILE = loadEnvFile();
+
+    private TutorConfig() {
+    }
+
+    /**
+     * Reads all KEY=value lines from the .env file, if present
+     */
+    private static Map<String, String> loadEnvFile() {
+        Map<String, String> values = new HashMap<>();
+        File envFile = new File(".env");
+        if (!envFile.exists()) {
+            return values;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(envFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                int eq = line.indexOf('=');
+                if (line.isEmpty() || line.startsWith("#") || eq <= 0) {
+                    continue;
+                }
+                String value = line.substring(eq + 1).trim();
+                // Remove quotes if present
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                values.put(line.substring(0, eq).trim(), value);
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️ Could not read .env file: " + e.getMessage());
+        }
+        return values;
+    }
+
+    /**
+     * Returns the value from the .env file only, or null
+     */
+    static String fromEnvFile(String name) {
+        String value = ENV_FILE.get(name);
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Returns the value from the .env file, then the environment, then the default
+     */
+    static String get(String name, String defaultValue) {
+        String value = fromEnvFile(name);
+        if (value == null) {
+            value = System.getenv(name);
+        }
+        return value == null || value.isEmpty() ? defaultValue : value.trim();
+    }
+
+    static int getInt(String name, int defaultValue) {
+        String value = get(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("⚠️ Invalid number for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static long getLong(String name, long defaultValue) {
+        String value = get(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("⚠️ Invalid number for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static double getDouble(String name, double defaultValue) {
+        String value = get(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            System.err.println("⚠️ Invalid number for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static boolean getBoolean(String name, boolean defaultValue) {
+        String value = get(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return value.equalsIgnoreCase("true") || value.equals("1") || value.equalsIgnoreCase("yes");
+    }
+}
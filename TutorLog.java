@@ -0,0 +1,230 @@
+import java.io.*;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous, leveled logging for the request path
+ * Callers only enqueue into a lock-free ring buffer; one background thread
+ * formats and writes, so the console never serializes request threads.
+ * When the ring is full new lines are dropped (and counted) rather than
+ * blocking a request
+ *
+ * Settings: LOG_LEVEL (debug, info, warn, error), LOG_BODY_LIMIT,
+ * LOG_BUFFER_SIZE and LOG_SAMPLE_<CATEGORY> (0.0-1.0, applies to debug/info)
+ */
+final class TutorLog {
+
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final Level LEVEL = parseLevel(TutorConfig.get("LOG_LEVEL", "info"));
+    private static final int BODY_LIMIT = TutorConfig.getInt("LOG_BODY_LIMIT", 200);
+    private static final ConcurrentHashMap<String, Double> SAMPLE_RATES = new ConcurrentHashMap<>();
+
+    private static final Ring RING = new Ring(TutorConfig.getInt("LOG_BUFFER_SIZE", 8192));
+    private static final LongAdder DROPPED = new LongAdder();
+
+    static {
+        startWriter();
+    }
+
+    private TutorLog() {
+    }
+
+    static boolean isDebugEnabled() {
+        return LEVEL == Level.DEBUG;
+    }
+
+    static void debug(String category, Supplier<String> message) {
+        if (LEVEL == Level.DEBUG && sampled(category)) {
+            enqueue(Level.DEBUG, message.get(), null);
+        }
+    }
+
+    static void info(String category, String message) {
+        if (LEVEL.compareTo(Level.INFO) <= 0 && sampled(category)) {
+            enqueue(Level.INFO, message, null);
+        }
+    }
+
+    static void info(String category, Supplier<String> message) {
+        if (LEVEL.compareTo(Level.INFO) <= 0 && sampled(category)) {
+            enqueue(Level.INFO, message.get(), null);
+        }
+    }
+
+    static void warn(String category, String message) {
+        if (LEVEL.compareTo(Level.WARN) <= 0) {
+            enqueue(Level.WARN, message, null);
+        }
+    }
+
+    static void error(String category, String message) {
+        enqueue(Level.ERROR, message, null);
+    }
+
+    static void error(String category, String message, Throwable error) {
+        enqueue(Level.ERROR, message, error);
+    }
+
+    /**
+     * Shortens a request/response body for logging unless debug logging is on
+     */
+    static String body(String body) {
+        if (body == null || LEVEL == Level.DEBUG || body.length() <= BODY_LIMIT) {
+            return body;
+        }
+        return body.substring(0, BODY_LIMIT) + "... (" + body.length() + " chars)";
+    }
+
+    /**
+     * Number of lines dropped because the ring buffer was full
+     */
+    static long dropped() {
+        return DROPPED.sum();
+    }
+
+    private static boolean sampled(String category) {
+        double rate = SAMPLE_RATES.computeIfAbsent(category,
+                c -> TutorConfig.getDouble("LOG_SAMPLE_" + c.toUpperCase(Locale.ROOT), 1.0));
+        return rate >= 1.0 || ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    private static void enqueue(Level level, String message, Throwable error) {
+        if (!RING.offer(new Entry(level, message, error))) {
+            DROPPED.increment();
+        }
+    }
+
+    private static Level parseLevel(String value) {
+        try {
+            return Level.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("⚠️ Unknown LOG_LEVEL '" + value + "', using info");
+            return Level.INFO;
+        }
+    }
+
+    private static void startWriter() {
+        Thread writer = new Thread(TutorLog::writeLoop, "tutor-log");
+        writer.setDaemon(true);
+        writer.start();
+        // Whatever is still queued at exit is written out by the hook
+        Runtime.getRuntime().addShutdownHook(new Thread(TutorLog::drain, "tutor-log-flush"));
+    }
+
+    private static void writeLoop() {
+        long reportedDrops = 0;
+        while (true) {
+            if (!drain()) {
+                long drops = DROPPED.sum();
+                if (drops != reportedDrops) {
+                    System.err.println("⚠️ " + (drops - reportedDrops) + " log lines dropped (log buffer full)");
+                    reportedDrops = drops;
+                }
+                LockSupport.parkNanos(1_000_000L);
+            }
+        }
+    }
+
+    /**
+     * Writes every queued entry with one print per stream; false if nothing was queued
+     * Only the writer thread (and the shutdown hook) ever touch System.out here
+     */
+    private static synchronized boolean drain() {
+        Entry entry = RING.poll();
+        if (entry == null) {
+            return false;
+        }
+        StringWriter out = new StringWriter();
+        StringWriter err = new StringWriter();
+        PrintWriter outLines = new PrintWriter(out);
+        PrintWriter errLines = new PrintWriter(err);
+        do {
+            PrintWriter target = entry.level.compareTo(Level.WARN) >= 0 ? errLines : outLines;
+            target.println(entry.message);
+            if (entry.error != null) {
+                entry.error.printStackTrace(target);
+            }
+        } while ((entry = RING.poll()) != null);
+        if (out.getBuffer().length() > 0) {
+            System.out.print(out);
+            System.out.flush();
+        }
+        if (err.getBuffer().length() > 0) {
+            System.err.print(err);
+            System.err.flush();
+        }
+        return true;
+    }
+
+    private static final class Entry {
+        final Level level;
+        final String message;
+        final Throwable error;
+
+        Entry(Level level, String message, Throwable error) {
+            this.level = level;
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Bounded multi-producer, single-consumer ring (Vyukov-style sequence slots)
+     */
+    private static final class Ring {
+        private final Entry[] entries;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        private final int mask;
+        private long head; // only touched by the consumer
+
+        Ring(int requested) {
+            int capacity = Integer.highestOneBit(Math.max(2, requested - 1)) << 1;
+            entries = new Entry[capacity];
+            sequences = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        boolean offer(Entry entry) {
+            while (true) {
+                long pos = tail.get();
+                int index = (int) pos & mask;
+                long diff = sequences.get(index) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        entries[index] = entry;
+                        // Publishing the sequence makes the entry visible to the consumer
+                        sequences.lazySet(index, pos + 1);
+                        return true;
+                    }
+                } else if (diff < 0) {
+                    return false; // full
+                }
+            }
+        }
+
+        Entry poll() {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                return null;
+            }
+            Entry entry = entries[index];
+            entries[index] = null;
+            sequences.lazySet(index, head + entries.length);
+            head++;
+            return entry;
+        }
+    }
+}
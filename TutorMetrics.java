@@ -0,0 +1,229 @@
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Request metrics, rendered in Prometheus text format for GET /metrics
+ * Recording only touches atomics and LongAdders, so the request path
+ * never takes a lock; the work of summing happens when /metrics is scraped
+ */
+final class TutorMetrics {
+
+    /**
+     * Timed steps of a question, in the order handleRequest runs them
+     */
+    enum Phase {
+        BODY_READ, SUBJECT_DETECTION, CACHE_LOOKUP, UPSTREAM, RESPONSE_WRITE;
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // Bucket bounds exposed to Prometheus, in seconds
+    private static final double[] BOUNDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+            0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    private static final ConcurrentHashMap<String, LongAdder> SUBJECTS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> UPSTREAM_STATUS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> FINISH_REASONS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> RETRIES = new ConcurrentHashMap<>();
+
+    private static final LongAdder REQUESTS_IN_FLIGHT = new LongAdder();
+    private static final LongAdder UPSTREAM_IN_FLIGHT = new LongAdder();
+
+    // Values owned by other components (caches, quota, logger), read at scrape time
+    private static final List<Sampled> SAMPLED = new ArrayList<>();
+    private static final List<SampledFamily> SAMPLED_FAMILIES = new ArrayList<>();
+
+    private TutorMetrics() {
+    }
+
+    static void record(Phase phase, long startNanos) {
+        phase.histogram.record(System.nanoTime() - startNanos);
+    }
+
+    static void countSubject(String subject) {
+        increment(SUBJECTS, subject == null ? "other" : subject);
+    }
+
+    static void countUpstreamStatus(int status) {
+        increment(UPSTREAM_STATUS, String.valueOf(status));
+    }
+
+    /**
+     * Counts a finishReason; null (a chunk still generating) is ignored
+     */
+    static void countFinishReason(String reason) {
+        if (reason != null) {
+            increment(FINISH_REASONS, reason);
+        }
+    }
+
+    /**
+     * Counts a retried Gemini call by what went wrong: a status code or "io"
+     */
+    static void countRetry(String reason) {
+        increment(RETRIES, reason);
+    }
+
+    static void requestStarted() {
+        REQUESTS_IN_FLIGHT.increment();
+    }
+
+    static void requestFinished() {
+        REQUESTS_IN_FLIGHT.decrement();
+    }
+
+    static void upstreamStarted() {
+        UPSTREAM_IN_FLIGHT.increment();
+    }
+
+    static void upstreamFinished() {
+        UPSTREAM_IN_FLIGHT.decrement();
+    }
+
+    /**
+     * Exposes a counter kept elsewhere; call during startup only
+     */
+    static synchronized void registerCounter(String name, String help, LongSupplier value) {
+        SAMPLED.add(new Sampled(name, help, "counter", value));
+    }
+
+    /**
+     * Exposes a gauge kept elsewhere; call during startup only
+     */
+    static synchronized void registerGauge(String name, String help, LongSupplier value) {
+        SAMPLED.add(new Sampled(name, help, "gauge", value));
+    }
+
+    /**
+     * Exposes one labelled series per key of a map built at scrape time; call during startup only
+     */
+    static synchronized void registerFamily(String name, String help, String type, String label,
+            Supplier<Map<String, Long>> values) {
+        SAMPLED_FAMILIES.add(new SampledFamily(name, help, type, label, values));
+    }
+
+    /**
+     * Renders every metric in Prometheus text exposition format (version 0.0.4)
+     */
+    static synchronized String render() {
+        StringBuilder out = new StringBuilder(8192);
+
+        header(out, "aitutor_phase_duration_seconds", "Time spent in each step of handling a question", "histogram");
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = phase.histogram;
+            String label = "phase=\"" + phase.label() + "\"";
+            for (double bound : BOUNDS) {
+                out.append("aitutor_phase_duration_seconds_bucket{").append(label)
+                        .append(",le=\"").append(BigDecimal.valueOf(bound).toPlainString()).append("\"} ").append(histogram.countAtOrBelow((long) (bound * 1e9))).append('\n');
+            }
+            long count = histogram.count();
+            out.append("aitutor_phase_duration_seconds_bucket{").append(label).append(",le=\"+Inf\"} ").append(count).append('\n');
+            out.append("aitutor_phase_duration_seconds_sum{").append(label).append("} ").append(histogram.sumNanos() / 1e9).append('\n');
+            out.append("aitutor_phase_duration_seconds_count{").append(label).append("} ").append(count).append('\n');
+        }
+
+        header(out, "aitutor_phase_duration_quantile_seconds", "Latency quantiles per step since startup", "gauge");
+        for (Phase phase : Phase.values()) {
+            for (double quantile : QUANTILES) {
+                out.append("aitutor_phase_duration_quantile_seconds{phase=\"").append(phase.label())
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(phase.histogram.quantileNanos(quantile) / 1e9).append('\n');
+            }
+        }
+
+        labelled(out, "aitutor_questions_total", "Questions by detected subject", "subject", SUBJECTS);
+        labelled(out, "aitutor_upstream_responses_total", "Gemini responses by HTTP status", "status", UPSTREAM_STATUS);
+        labelled(out, "aitutor_finish_reasons_total", "Gemini answers by finishReason", "reason", FINISH_REASONS);
+        labelled(out, "aitutor_upstream_retries_total", "Gemini calls retried, by status or io", "reason", RETRIES);
+
+        header(out, "aitutor_requests_in_flight", "Questions currently being handled", "gauge");
+        out.append("aitutor_requests_in_flight ").append(REQUESTS_IN_FLIGHT.sum()).append('\n');
+        header(out, "aitutor_upstream_in_flight", "Gemini calls currently waiting for a response", "gauge");
+        out.append("aitutor_upstream_in_flight ").append(UPSTREAM_IN_FLIGHT.sum()).append('\n');
+
+        for (Sampled sampled : SAMPLED) {
+            header(out, sampled.name, sampled.help, sampled.type);
+            out.append(sampled.name).append(' ').append(sampled.value.getAsLong()).append('\n');
+        }
+        for (SampledFamily family : SAMPLED_FAMILIES) {
+            header(out, family.name, family.help, family.type);
+            for (Map.Entry<String, Long> entry : family.values.get().entrySet()) {
+                out.append(family.name).append('{').append(family.label).append("=\"").append(escapeLabel(entry.getKey()))
+                        .append("\"} ").append(entry.getValue()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static void increment(ConcurrentHashMap<String, LongAdder> counters, String key) {
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    private static void labelled(StringBuilder out, String name, String help, String label,
+            ConcurrentHashMap<String, LongAdder> counters) {
+        header(out, name, help, "counter");
+        // Sorted so consecutive scrapes list series in the same order
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            out.append(name).append('{').append(label).append("=\"").append(escapeLabel(entry.getKey()))
+                    .append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Sampled {
+        final String name;
+        final String help;
+        final String type;
+        final LongSupplier value;
+
+        Sampled(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private static final class SampledFamily {
+        final String name;
+        final String help;
+        final String type;
+        final String label;
+        final Supplier<Map<String, Long>> values;
+
+        SampledFamily(String name, String help, String type, String label, Supplier<Map<String, Long>> values) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.label = label;
+            this.values = values;
+        }
+    }
+}
@@ -0,0 +1,432 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server side of a WebSocket (RFC 6455) on an upgraded NioHttpServer connection
+ * Frames are parsed on the connection's event loop and whole text messages
+ * are handed to the listener on the executor, one at a time and in order.
+ * Sending never blocks: frames join the connection's queue, and a sender
+ * that wants to go easy on a slow client asks whenWritable() to call it
+ * back once the queue has drained. A ping goes out every
+ * WS_PING_INTERVAL_MS, and a client silent for two intervals is dropped;
+ * while reading is paused its pongs go unread, so silence is not counted.
+ * com.sun.net.httpserver cannot give up its socket after a 101, so
+ * WebSockets need HTTP_SERVER=nio; the JDK server answers 501.
+ *
+ * Settings: WS_MAX_MESSAGE_BYTES, WS_PING_INTERVAL_MS
+ */
+final class WebSocket implements NioHttpServer.TunnelHandler {
+
+    static final int NORMAL_CLOSURE = 1000;
+    static final int GOING_AWAY = 1001;
+    static final int PROTOCOL_ERROR = 1002;
+    static final int UNSUPPORTED_DATA = 1003;
+    static final int INVALID_PAYLOAD = 1007;
+    static final int MESSAGE_TOO_BIG = 1009;
+    static final int INTERNAL_ERROR = 1011;
+
+    /**
+     * Gets a socket's messages on the executor, never on the event loop
+     */
+    interface Listener {
+        void onOpen(WebSocket socket);
+
+        void onText(WebSocket socket, String text);
+
+        void onClose(WebSocket socket);
+    }
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private static final int MAX_MESSAGE_BYTES = TutorConfig.getInt("WS_MAX_MESSAGE_BYTES", 65_536);
+    private static final long PING_INTERVAL_MS = Math.max(1_000, TutorConfig.getLong("WS_PING_INTERVAL_MS", 30_000));
+
+    private static final ScheduledExecutorService HEARTBEAT = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ws-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final AtomicInteger open = new AtomicInteger();
+    private static final LongAdder received = new LongAdder();
+    private static final LongAdder sent = new LongAdder();
+
+    private final Listener listener;
+    private final Executor executor;
+    private volatile NioHttpServer.Tunnel tunnel;
+    private volatile long lastSeen;
+    private volatile boolean readingPaused;
+    private ScheduledFuture<?> heartbeat;
+
+    // Loop thread only
+    private ByteBuffer pending;
+    private ByteArrayOutputStream fragments;
+    // Listener calls run one after another in this chain
+    private CompletableFuture<Void> delivered = CompletableFuture.completedFuture(null);
+
+    // Guarded by this
+    private boolean closeSent;
+
+    private WebSocket(Listener listener, Executor executor) {
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    /**
+     * True if the request asks to switch to WebSocket
+     */
+    static boolean isUpgrade(HttpExchange exchange) {
+        Headers headers = exchange.getRequestHeaders();
+        String connection = headers.getFirst("Connection");
+        return "GET".equalsIgnoreCase(exchange.getRequestMethod())
+                && "websocket".equalsIgnoreCase(headers.getFirst("Upgrade"))
+                && connection != null
+                && connection.toLowerCase(Locale.ROOT).contains("upgrade");
+    }
+
+    /**
+     * Completes the handshake and hands the connection to listener, or answers
+     * with an HTTP error and returns false
+     */
+    static boolean accept(HttpExchange exchange, Listener listener, Executor executor) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        if (!isUpgrade(exchange)) {
+            exchange.getResponseHeaders().set("Upgrade", "websocket");
+            exchange.sendResponseHeaders(426, -1);
+            return false;
+        }
+        if (!NioHttpServer.canUpgrade(exchange)) {
+            exchange.sendResponseHeaders(501, -1);
+            return false;
+        }
+        if (!"13".equals(headers.getFirst("Sec-WebSocket-Version"))) {
+            exchange.getResponseHeaders().set("Sec-WebSocket-Version", "13");
+            exchange.sendResponseHeaders(426, -1);
+            return false;
+        }
+        String key = headers.getFirst("Sec-WebSocket-Key");
+        if (!validKey(key)) {
+            exchange.sendResponseHeaders(400, -1);
+            return false;
+        }
+        Headers response = exchange.getResponseHeaders();
+        response.set("Upgrade", "websocket");
+        response.set("Connection", "Upgrade");
+        response.set("Sec-WebSocket-Accept", acceptKey(key.trim()));
+        NioHttpServer.upgrade(exchange, new WebSocket(listener, executor));
+        return true;
+    }
+
+    /**
+     * Sends one text message; false once the socket is closing or closed
+     */
+    boolean sendText(String text) {
+        if (!sendFrame(OP_TEXT, text.getBytes(StandardCharsets.UTF_8))) {
+            return false;
+        }
+        sent.increment();
+        return true;
+    }
+
+    /**
+     * Runs action on the executor once the client has read most of what was sent
+     * Also runs when the socket closes, where the next sendText will say so
+     */
+    void whenWritable(Runnable action) {
+        tunnel.whenWritable(() -> executor.execute(action));
+    }
+
+    /**
+     * Stops reading the client's messages until resumed; TCP holds the client back meanwhile
+     */
+    void pauseReading(boolean paused) {
+        readingPaused = paused;
+        if (!paused) {
+            // The client had no way to be heard meanwhile
+            lastSeen = System.nanoTime();
+        }
+        tunnel.pauseReading(paused);
+    }
+
+    /**
+     * Sends a close frame and closes once it has been written
+     */
+    void close(int code, String reason) {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + Math.min(text.length, 123));
+        payload.putShort((short) code).put(text, 0, payload.remaining());
+        synchronized (this) {
+            if (closeSent) {
+                return;
+            }
+            tunnel.send(frame(OP_CLOSE, payload.array()));
+            closeSent = true;
+        }
+        tunnel.close();
+    }
+
+    static long openSockets() {
+        return open.get();
+    }
+
+    static long messagesReceived() {
+        return received.sum();
+    }
+
+    static long messagesSent() {
+        return sent.sum();
+    }
+
+    @Override
+    public void onOpen(NioHttpServer.Tunnel tunnel) {
+        this.tunnel = tunnel;
+        lastSeen = System.nanoTime();
+        open.incrementAndGet();
+        heartbeat = HEARTBEAT.scheduleAtFixedRate(this::heartbeat, PING_INTERVAL_MS, PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        deliver(() -> listener.onOpen(this));
+    }
+
+    @Override
+    public void onData(ByteBuffer data) {
+        lastSeen = System.nanoTime();
+        ByteBuffer buffer = data;
+        if (pending != null) {
+            buffer = ByteBuffer.allocate(pending.remaining() + data.remaining());
+            buffer.put(pending).put(data).flip();
+        }
+        parse(buffer);
+        // data is the connection's pooled buffer, so a partial frame is copied out
+        if (buffer.hasRemaining() && !isCloseSent()) {
+            pending = ByteBuffer.allocate(buffer.remaining());
+            pending.put(buffer).flip();
+        } else {
+            pending = null;
+        }
+        data.position(data.limit());
+    }
+
+    @Override
+    public void onClosed() {
+        heartbeat.cancel(false);
+        open.decrementAndGet();
+        pending = null;
+        fragments = null;
+        deliver(() -> listener.onClose(this));
+    }
+
+    /**
+     * Handles every complete frame in buffer, leaving a partial one in place
+     */
+    private void parse(ByteBuffer buffer) {
+        while (buffer.remaining() >= 2 && !isCloseSent()) {
+            int start = buffer.position();
+            int first = buffer.get(start) & 0xff;
+            int second = buffer.get(start + 1) & 0xff;
+            boolean fin = (first & 0x80) != 0;
+            int opcode = first & 0x0f;
+            if ((first & 0x70) != 0) {
+                close(PROTOCOL_ERROR, "Reserved bits set");
+                return;
+            }
+            if ((second & 0x80) == 0) {
+                close(PROTOCOL_ERROR, "Client frames must be masked");
+                return;
+            }
+            long length = second & 0x7f;
+            int header = 2;
+            if (length == 126) {
+                if (buffer.remaining() < 4) {
+                    return;
+                }
+                length = buffer.getShort(start + 2) & 0xffff;
+                header = 4;
+            } else if (length == 127) {
+                if (buffer.remaining() < 10) {
+                    return;
+                }
+                length = buffer.getLong(start + 2);
+                header = 10;
+            }
+            boolean control = opcode >= OP_CLOSE;
+            if (control && (length > 125 || !fin)) {
+                close(PROTOCOL_ERROR, "Bad control frame");
+                return;
+            }
+            // Checked before the payload arrives, so an oversized message is never buffered
+            long assembled = fragments == null ? 0 : fragments.size();
+            if (length < 0 || (!control && assembled + length > MAX_MESSAGE_BYTES)) {
+                close(MESSAGE_TOO_BIG, "Message too big");
+                return;
+            }
+            if (buffer.remaining() < header + 4 + length) {
+                return;
+            }
+            byte[] mask = new byte[4];
+            buffer.position(start + header);
+            buffer.get(mask);
+            byte[] payload = new byte[(int) length];
+            buffer.get(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+            onFrame(fin, opcode, payload);
+        }
+    }
+
+    private void onFrame(boolean fin, int opcode, byte[] payload) {
+        switch (opcode) {
+            case OP_TEXT:
+            case OP_CONTINUATION:
+                if ((opcode == OP_TEXT) == (fragments != null)) {
+                    close(PROTOCOL_ERROR, "Unexpected continuation");
+                    return;
+                }
+                if (fin && fragments == null) {
+                    onMessage(payload);
+                    return;
+                }
+                if (fragments == null) {
+                    fragments = new ByteArrayOutputStream();
+                }
+                fragments.write(payload, 0, payload.length);
+                if (fin) {
+                    byte[] message = fragments.toByteArray();
+                    fragments = null;
+                    onMessage(message);
+                }
+                return;
+            case OP_BINARY:
+                close(UNSUPPORTED_DATA, "Only text messages are supported");
+                return;
+            case OP_PING:
+                sendFrame(OP_PONG, payload);
+                return;
+            case OP_PONG:
+                // lastSeen was already updated by the read
+                return;
+            case OP_CLOSE:
+                int code = payload.length >= 2 ? ((payload[0] & 0xff) << 8) | (payload[1] & 0xff) : NORMAL_CLOSURE;
+                close(code, "");
+                return;
+            default:
+                close(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+        }
+    }
+
+    private void onMessage(byte[] payload) {
+        String text;
+        try {
+            text = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(payload))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            close(INVALID_PAYLOAD, "Text is not UTF-8");
+            return;
+        }
+        received.increment();
+        deliver(() -> listener.onText(this, text));
+    }
+
+    /**
+     * Queues call after every earlier listener call; runs on the loop thread only
+     */
+    private void deliver(Runnable call) {
+        delivered = delivered.thenRunAsync(() -> {
+            try {
+                call.run();
+            } catch (RuntimeException e) {
+                TutorLog.error("ws", "❌ WebSocket listener failed: " + e.getMessage(), e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Pings the client, or drops it after two intervals without hearing from it
+     * A paused socket is only pinged: its pong waits unread behind the paused input
+     */
+    private void heartbeat() {
+        long silentMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSeen);
+        if (!readingPaused && silentMillis > 2 * PING_INTERVAL_MS) {
+            TutorLog.info("ws", "💤 WebSocket client silent for " + silentMillis + " ms, closing");
+            tunnel.abort();
+            return;
+        }
+        sendFrame(OP_PING, new byte[0]);
+    }
+
+    private synchronized boolean isCloseSent() {
+        return closeSent;
+    }
+
+    private synchronized boolean sendFrame(int opcode, byte[] payload) {
+        // Nothing may follow a close frame
+        return !closeSent && tunnel.send(frame(opcode, payload));
+    }
+
+    /**
+     * One unmasked, unfragmented server frame
+     */
+    private static ByteBuffer frame(int opcode, byte[] payload) {
+        int header = payload.length < 126 ? 2 : payload.length <= 0xffff ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(header + payload.length);
+        frame.put((byte) (0x80 | opcode));
+        if (payload.length < 126) {
+            frame.put((byte) payload.length);
+        } else if (payload.length <= 0xffff) {
+            frame.put((byte) 126).putShort((short) payload.length);
+        } else {
+            frame.put((byte) 127).putLong(payload.length);
+        }
+        return frame.put(payload).flip();
+    }
+
+    /**
+     * A Sec-WebSocket-Key must be 16 random bytes in base64
+     */
+    private static boolean validKey(String key) {
+        if (key == null) {
+            return false;
+        }
+        try {
+            return Base64.getDecoder().decode(key.trim()).length == 16;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is always available", e);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrency check for /ask: drives a running AITutorServer at rising
+ * concurrency and shows whether throughput scales with it
+ * Every question is distinct and sent with Cache-Control: no-cache, so each
+ * one reaches Gemini. Point the server at mock/MockGeminiServer.java, whose
+ * fixed latency makes the ideal throughput concurrency / latency. Exits with
+ * 1 when the top level is not at least load.minSpeedup times the first.
+ *
+ * Run from the project root, with the mock and the server already started:
+ *   java -Dload.levels=1,8,64,256 bench/AskLoadTest.java
+ */
+public class AskLoadTest {
+
+    private static final String URL = System.getProperty("load.url", "http://localhost:8080/ask");
+    private static final int[] LEVELS = Arrays.stream(System.getProperty("load.levels", "1,8,64,256").split(","))
+            .map(String::trim).mapToInt(Integer::parseInt).toArray();
+    // Requests per level; at least a few rounds of the concurrency so the start-up ramp does not dominate
+    private static final int REQUESTS = Integer.getInteger("load.requests", 0);
+    private static final double MIN_SPEEDUP = Double.parseDouble(System.getProperty("load.minSpeedup", "4"));
+
+    private static final AtomicInteger questionIds = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+        System.out.println("🏋️ Load test against " + URL);
+        System.out.println(String.format("%8s %8s %6s %6s %6s %10s %8s %8s %8s",
+                "conc", "requests", "ok", "busy", "error", "req/s", "p50 ms", "p95 ms", "p99 ms"));
+
+        double first = 0;
+        double last = 0;
+        for (int level : LEVELS) {
+            Result result = run(client, level, REQUESTS > 0 ? REQUESTS : Math.max(20, level * 4));
+            System.out.println(result);
+            if (first == 0) {
+                first = result.throughput();
+            }
+            last = result.throughput();
+        }
+
+        double speedup = first > 0 ? last / first : 0;
+        System.out.println(String.format("📈 Throughput at %d concurrent is %.1fx that at %d",
+                LEVELS[LEVELS.length - 1], speedup, LEVELS[0]));
+        if (LEVELS.length > 1 && speedup < MIN_SPEEDUP) {
+            System.out.println("❌ Expected at least " + MIN_SPEEDUP + "x; /ask calls are queueing behind each other");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Sends count questions keeping concurrency of them in flight
+     */
+    private static Result run(HttpClient client, int concurrency, int count) throws InterruptedException {
+        Semaphore slots = new Semaphore(concurrency);
+        LongAdder ok = new LongAdder();
+        LongAdder busy = new LongAdder();
+        LongAdder errors = new LongAdder();
+        long[] latencies = new long[count];
+        List<CompletableFuture<?>> calls = new ArrayList<>(count);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            slots.acquire();
+            int index = i;
+            long sent = System.nanoTime();
+            HttpRequest request = HttpRequest.newBuilder(URI.create(URL))
+                    .timeout(Duration.ofSeconds(60))
+                    .header("Content-Type", "application/json")
+                    .header("Cache-Control", "no-cache")
+                    .POST(HttpRequest.BodyPublishers.ofString(
+                            "{\"message\":\"What is a java thread, question " + questionIds.incrementAndGet() + "?\"}"))
+                    .build();
+            calls.add(client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, error) -> {
+                        latencies[index] = System.nanoTime() - sent;
+                        if (error != null) {
+                            errors.increment();
+                        } else if (response.statusCode() == 200) {
+                            ok.increment();
+                        } else if (response.statusCode() == 503) {
+                            busy.increment();
+                        } else {
+                            errors.increment();
+                        }
+                        slots.release();
+                    }));
+        }
+        CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        return new Result(concurrency, count, ok.sum(), busy.sum(), errors.sum(), elapsed, latencies);
+    }
+
+    private static final class Result {
+        final int concurrency;
+        final int count;
+        final long ok;
+        final long busy;
+        final long errors;
+        final long elapsedNanos;
+        final long[] sortedLatencies;
+
+        Result(int concurrency, int count, long ok, long busy, long errors, long elapsedNanos, long[] sortedLatencies) {
+            this.concurrency = concurrency;
+            this.count = count;
+            this.ok = ok;
+            this.busy = busy;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.sortedLatencies = sortedLatencies;
+        }
+
+        double throughput() {
+            return ok * 1e9 / elapsedNanos;
+        }
+
+        private double percentileMillis(double p) {
+            int index = (int) Math.min(sortedLatencies.length - 1, Math.ceil(p * sortedLatencies.length) - 1);
+            return sortedLatencies[Math.max(0, index)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%8d %8d %6d %6d %6d %10.1f %8.0f %8.0f %8.0f", concurrency, count, ok, busy, errors,
+                    throughput(), percentileMillis(0.50), percentileMillis(0.95), percentileMillis(0.99));
+        }
+    }
+}
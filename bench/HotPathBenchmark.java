@@ -0,0 +1,329 @@
+import com.sun.management.ThreadMXBean;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Microbenchmarks for the per-request CPU path of AITutorServer
+ * Reports time (ns/op) and heap allocation (B/op) per call, measured with
+ * the JVM's per-thread allocation counter
+ *
+ * Build and run from the project root:
+ *   javac -encoding UTF-8 -d bench-out *.java bench/*.java
+ *   java -cp bench-out HotPathBenchmark [name-filter]
+ */
+public class HotPathBenchmark {
+
+    private static final long WARMUP_NANOS = Long.getLong("bench.warmupMs", 1_000) * 1_000_000L;
+    private static final int MEASURE_ROUNDS = Integer.getInteger("bench.rounds", 5);
+    private static final long ROUND_NANOS = Long.getLong("bench.roundMs", 500) * 1_000_000L;
+
+    // Results are folded in here so the JIT cannot drop the benchmarked work
+    private static volatile int sink;
+
+    private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        PrintStream console = System.out;
+        PrintStream errors = System.err;
+
+        List<Benchmark> benchmarks = new ArrayList<>();
+
+        String shortQuestion = "what is a deadlock in os";
+        String longQuestion = repeat("Explain how the JVM garbage collector decides which objects in the young "
+                + "generation survive, and how that interacts with thread stacks and the heap. ", 14);
+        String shortBody = "{\"message\":\"" + shortQuestion + "\"}";
+        String longBody = "{\"message\":\"" + longQuestion + "\"}";
+        String codeAnswer = codeAnswer(8 * 1024);
+
+        benchmarks.add(new Benchmark("extractMessageSimple/short", () -> AITutorServer.extractMessageSimple(shortBody)));
+        benchmarks.add(new Benchmark("extractMessageSimple/long", () -> AITutorServer.extractMessageSimple(longBody)));
+        benchmarks.add(new Benchmark("detectSubject/short", () -> AITutorServer.detectSubject(shortQuestion)));
+        benchmarks.add(new Benchmark("detectSubject/long", () -> AITutorServer.detectSubject(longQuestion)));
+        benchmarks.add(new Benchmark("detectSubject/miss", () -> AITutorServer.detectSubject("what's the weather like today")));
+        benchmarks.add(new Benchmark("escapeJson/prose", () -> AITutorServer.escapeJson(longQuestion)));
+        benchmarks.add(new Benchmark("escapeJson/code8k", () -> AITutorServer.escapeJson(codeAnswer)));
+        benchmarks.add(new Benchmark("geminiPayload/short", () -> GeminiPayload.question("Operating Systems", shortQuestion)));
+        benchmarks.add(new Benchmark("geminiPayload/long", () -> GeminiPayload.question("Java", longQuestion)));
+
+        for (int size : new int[] { 2 * 1024, 16 * 1024, 64 * 1024 }) {
+            byte[] response = geminiResponse(codeAnswer(size)).getBytes(StandardCharsets.UTF_8);
+            benchmarks.add(new Benchmark("extractGeminiMessage/" + size / 1024 + "k",
+                    () -> AITutorServer.extractGeminiMessage(new ByteArrayInputStream(response))));
+        }
+
+        for (int size : new int[] { 2 * 1024, 16 * 1024 }) {
+            String answer = codeAnswer(size);
+            benchmarks.add(new Benchmark("sendResponse/" + size / 1024 + "k", () -> {
+                FakeExchange exchange = new FakeExchange();
+                try {
+                    AITutorServer.sendResponse(exchange, 200, answer);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return exchange.written;
+            }));
+        }
+
+        // Conversation history with 100k active sessions of 6 turns each
+        Path historyDir = Files.createTempDirectory("bench-history");
+        ConversationLog history = new ConversationLog(historyDir, 64 << 20, 20, TimeUnit.HOURS.toMillis(1), 0.5);
+        int sessions = 100_000;
+        String turnAnswer = codeAnswer(600);
+        for (int turn = 0; turn < 6; turn++) {
+            for (int i = 0; i < sessions; i++) {
+                history.append("session-" + i, "Java", "question " + turn, turnAnswer);
+            }
+        }
+        String[] sessionIds = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            sessionIds[i] = "session-" + i;
+        }
+        int[] cursor = { 0 };
+        benchmarks.add(new Benchmark("history/append", () -> {
+            history.append(sessionIds[cursor[0]++ % sessions], "Java", shortQuestion, turnAnswer);
+            return history;
+        }));
+        benchmarks.add(new Benchmark("history/lastTurns6", () -> history.lastTurns(sessionIds[cursor[0]++ % sessions], 6)));
+
+        // Server code logs to stdout; discard it for the whole run so the
+        // background log writer does not compete with the measurements
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream(), false, StandardCharsets.UTF_8);
+        System.setOut(discard);
+        System.setErr(discard);
+
+        console.printf("%-32s %14s %14s%n", "Benchmark", "ns/op", "B/op");
+        try {
+            for (Benchmark benchmark : benchmarks) {
+                if (benchmark.name.contains(filter)) {
+                    benchmark.run();
+                    console.printf("%-32s %14.1f %14.1f%n", benchmark.name, benchmark.nanosPerOp, benchmark.bytesPerOp);
+                }
+            }
+        } finally {
+            System.setOut(console);
+            System.setErr(errors);
+            deleteTree(historyDir);
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static final class Benchmark {
+        final String name;
+        final Supplier<Object> body;
+        double nanosPerOp;
+        double bytesPerOp;
+
+        Benchmark(String name, Supplier<Object> body) {
+            this.name = name;
+            this.body = body;
+        }
+
+        void run() {
+            // Warm up until the JIT has settled, and size batches to ~1 ms
+            long batch = 1;
+            long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+            while (System.nanoTime() < warmupEnd) {
+                long start = System.nanoTime();
+                invoke(batch);
+                if (System.nanoTime() - start < 1_000_000L) {
+                    batch *= 2;
+                }
+            }
+
+            double[] nanos = new double[MEASURE_ROUNDS];
+            double[] bytes = new double[MEASURE_ROUNDS];
+            long thread = Thread.currentThread().getId();
+            for (int round = 0; round < MEASURE_ROUNDS; round++) {
+                long ops = 0;
+                long allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                long end = start + ROUND_NANOS;
+                long now;
+                do {
+                    invoke(batch);
+                    ops += batch;
+                } while ((now = System.nanoTime()) < end);
+                long allocated = THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+                nanos[round] = (double) (now - start) / ops;
+                bytes[round] = (double) allocated / ops;
+            }
+            nanosPerOp = median(nanos);
+            bytesPerOp = median(bytes);
+        }
+
+        private void invoke(long times) {
+            int h = 0;
+            for (long i = 0; i < times; i++) {
+                h += System.identityHashCode(body.get());
+            }
+            sink += h;
+        }
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            out.append(text);
+        }
+        return out.toString();
+    }
+
+    /**
+     * A code-heavy answer of roughly the given size: quotes, backslashes, tabs and newlines
+     */
+    private static String codeAnswer(int size) {
+        String block = "Here is an example:\n\n```java\npublic class Node {\n\tint value;\n\tNode next;\n\n"
+                + "\tString describe() {\n\t\treturn \"Node(\" + value + \") -> \\\"\" + next + \"\\\"\";\n\t}\n}\n```\n"
+                + "The path C:\\temp\\nodes is only an example; \"escaping\" matters.\n";
+        StringBuilder out = new StringBuilder(size + block.length());
+        while (out.length() < size) {
+            out.append(block);
+        }
+        out.setLength(size);
+        return out.toString();
+    }
+
+    /**
+     * Wraps an answer in a realistic generateContent response body
+     */
+    private static String geminiResponse(String answer) {
+        return "{\n  \"candidates\": [\n    {\n      \"content\": {\n        \"parts\": [\n          {\n"
+                + "            \"text\": \"" + AITutorServer.escapeJson(answer) + "\"\n          }\n        ],\n"
+                + "        \"role\": \"model\"\n      },\n      \"finishReason\": \"STOP\",\n      \"index\": 0\n    }\n"
+                + "  ],\n  \"usageMetadata\": {\n    \"promptTokenCount\": 42,\n    \"candidatesTokenCount\": 1234,\n"
+                + "    \"totalTokenCount\": 1276\n  },\n  \"modelVersion\": \"gemini-2.5-flash\"\n}\n";
+    }
+
+    /**
+     * Minimal in-memory exchange for timing sendResponse without a socket
+     */
+    private static final class FakeExchange extends HttpExchange {
+        private final Headers requestHeaders = new Headers();
+        private final Headers responseHeaders = new Headers();
+        private int responseCode = -1;
+        int written;
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return URI.create("/ask");
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return "POST";
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return InputStream.nullInputStream();
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            // Counts bytes instead of buffering them so the sink adds no allocation
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    written++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    written += len;
+                }
+            };
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) {
+            responseCode = rCode;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return new InetSocketAddress("127.0.0.1", 50000);
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return new InetSocketAddress("127.0.0.1", 8080);
+        }
+
+        @Override
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the question matching that decides what reaches Gemini against known cases
+ * Subjects that must or must not be detected, paraphrases that must share a cached
+ * answer, and look-alike questions that must not.
+ * Prints every failing case and exits with 1 if there is any.
+ *
+ * Build and run from the project root:
+ *   javac -encoding UTF-8 -d bench-out *.java bench/*.java
+ *   java -cp bench-out MatchingCheck
+ */
+public class MatchingCheck {
+
+    private static final List<String> failures = new ArrayList<>();
+    private static int checks;
+
+    public static void main(String[] args) {
+        subject("what is networking", "Networks");
+        subject("explain multithreading", "Operating Systems");
+        subject("how do I index a mysql table", "DBMS");
+        subject("what does javascript's event loop do", "Java");
+        subject("how are binary trees balanced", "Data Structures");
+        subject("why are sql queries slow", "DBMS");
+        subject("what is the os kernel", "Operating Systems");
+        subject("how much does it cost to ship a zip file", null);
+        subject("how do birds feed their offspring", null);
+        subject("how to bake bread with a springform pan", null);
+        subject("what is a threadbare carpet", null);
+        subject("a cheap street in a position of composite", null);
+
+        paraphrase("Operating Systems", "what is a deadlock in operating systems", "explain deadlock in os", true);
+        paraphrase("Operating Systems", "explain deadlock in os", "what is a deadlock in operating systems", true);
+        paraphrase("Java", "how does garbage collection work in java", "how does java garbage collection work", true);
+        paraphrase("Data Structures", "explain how a hash map handles collisions",
+                "how does a hash map handle collisions", true);
+        paraphrase("Java", "how does garbage collection work", "why garbage collection", false);
+        paraphrase("Operating Systems", "how does a deadlock happen", "what is a deadlock", false);
+        paraphrase("Data Structures", "when should I use a heap", "what is a heap", false);
+
+        System.out.println("🔎 " + (checks - failures.size()) + "/" + checks + " matching checks passed");
+        for (String failure : failures) {
+            System.out.println("❌ " + failure);
+        }
+        // Loading AITutorServer starts its background threads
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Checks that question is detected as expected, or as no subject when expected is null
+     */
+    private static void subject(String question, String expected) {
+        String detected = AITutorServer.detectSubject(question);
+        checks++;
+        if (expected == null ? detected != null : !expected.equals(detected)) {
+            failures.add("subject of \"" + question + "\" was " + detected + ", expected " + expected);
+        }
+    }
+
+    /**
+     * Caches an answer for stored and checks whether asked gets it back
+     */
+    private static void paraphrase(String subject, String stored, String asked, boolean shouldHit) {
+        NearDuplicateCache cache = new NearDuplicateCache(100, 0.8, 16, 4, 1, 3600);
+        cache.put(subject, stored, "answer");
+        boolean hit = cache.get(subject, asked) != null;
+        checks++;
+        if (hit != shouldHit) {
+            failures.add("paraphrase \"" + asked + "\" " + (shouldHit ? "missed" : "hit") + " \"" + stored + "\"");
+        }
+    }
+}
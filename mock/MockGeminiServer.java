@@ -0,0 +1,329 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stand-in for the Gemini API, for load and latency testing without quota or network
+ * Answers generateContent and streamGenerateContent?alt=sse in Gemini's JSON shapes,
+ * with configurable latency, answer size, stream cadence and injected failures.
+ * Responses are scheduled rather than slept on, so thousands of slow calls can be
+ * open at once on a handful of threads
+ *
+ * Run from the project root (single-file launch, no compile step):
+ *   java -Dmock.latencyMs=800 -Dmock.rate429=0.05 mock/MockGeminiServer.java
+ * then start the server with GEMINI_BASE_URL=http://localhost:7070/v1beta
+ */
+public class MockGeminiServer {
+
+    private static final int PORT = Integer.getInteger("mock.port", 7070);
+
+    // Time to the full response (generateContent) or first chunk (streaming)
+    private static final String LATENCY_DIST = System.getProperty("mock.latencyDist", "lognormal");
+    private static final double LATENCY_MS = doubleProperty("mock.latencyMs", 800);
+    private static final double LATENCY_SIGMA = doubleProperty("mock.latencySigma", 0.6);
+    private static final double LATENCY_MAX_MS = doubleProperty("mock.latencyMaxMs", 30_000);
+
+    // Answer length in characters, varied by +/- the jitter fraction
+    private static final int ANSWER_CHARS = Integer.getInteger("mock.answerChars", 1_500);
+    private static final double ANSWER_JITTER = doubleProperty("mock.answerJitter", 0.5);
+
+    // Streaming cadence: characters per chunk and the pause between chunks
+    private static final int CHUNK_CHARS = Integer.getInteger("mock.chunkChars", 60);
+    private static final long CHUNK_INTERVAL_MS = Long.getLong("mock.chunkIntervalMs", 40);
+
+    // Probability (0.0-1.0) of each injected outcome, checked in this order
+    private static final double RATE_429 = doubleProperty("mock.rate429", 0);
+    private static final double RATE_500 = doubleProperty("mock.rate500", 0);
+    private static final double RATE_503 = doubleProperty("mock.rate503", 0);
+    private static final double RATE_MAX_TOKENS = doubleProperty("mock.rateMaxTokens", 0);
+    private static final double RATE_SAFETY = doubleProperty("mock.rateSafety", 0);
+    private static final int RETRY_AFTER_SECONDS = Integer.getInteger("mock.retryAfterSeconds", 0);
+
+    private static final String[] WORDS = ("the a process thread memory value node pointer function returns "
+            + "each when which because stack queue heap call object class data index table query packet "
+            + "layer is are can will so then").split(" ");
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newScheduledThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), new DaemonFactory());
+
+    private static final LongAdder REQUESTS = new LongAdder();
+    private static final LongAdder INJECTED = new LongAdder();
+
+    public static void main(String[] args) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 1024);
+        server.createContext("/", MockGeminiServer::handle);
+        server.setExecutor(Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+                new DaemonFactory()));
+        server.start();
+
+        System.out.println("🧪 Mock Gemini API at http://localhost:" + PORT + "/v1beta");
+        System.out.println("   latency " + LATENCY_DIST + " " + LATENCY_MS + " ms (sigma " + LATENCY_SIGMA
+                + "), answers ~" + ANSWER_CHARS + " chars, stream " + CHUNK_CHARS + " chars every "
+                + CHUNK_INTERVAL_MS + " ms");
+        System.out.println("   injected: 429 " + RATE_429 + ", 500 " + RATE_500 + ", 503 " + RATE_503
+                + ", MAX_TOKENS " + RATE_MAX_TOKENS + ", SAFETY " + RATE_SAFETY);
+
+        // One summary line every 10 seconds while there is traffic
+        long[] last = { 0 };
+        SCHEDULER.scheduleAtFixedRate(() -> {
+            long total = REQUESTS.sum();
+            if (total != last[0]) {
+                System.out.println("📈 " + (total - last[0]) + " requests in the last 10 s (" + total + " total, "
+                        + INJECTED.sum() + " injected failures)");
+                last[0] = total;
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        REQUESTS.increment();
+        String path = exchange.getRequestURI().getPath();
+
+        if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            sendError(exchange, 405, "Method not allowed", "INVALID_ARGUMENT");
+            return;
+        }
+        String key = exchange.getRequestHeaders().getFirst("x-goog-api-key");
+        if (key == null || key.isEmpty()) {
+            sendError(exchange, 403, "Method doesn't allow unregistered callers. Please use API Key.", "PERMISSION_DENIED");
+            return;
+        }
+
+        boolean stream;
+        if (path.endsWith(":streamGenerateContent")) {
+            stream = true;
+        } else if (path.endsWith(":generateContent")) {
+            stream = false;
+        } else {
+            sendError(exchange, 404, "models/" + path + " is not found", "NOT_FOUND");
+            return;
+        }
+
+        Outcome outcome = Outcome.pick();
+        long delay = sampleLatencyMillis();
+
+        if (outcome.status != 200) {
+            INJECTED.increment();
+            SCHEDULER.schedule(() -> {
+                if (outcome.status == 429 && RETRY_AFTER_SECONDS > 0) {
+                    exchange.getResponseHeaders().set("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+                }
+                sendError(exchange, outcome.status, outcome.message, outcome.errorStatus);
+            }, delay, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (outcome != Outcome.OK) {
+            INJECTED.increment();
+        }
+
+        String answer = answer(ThreadLocalRandom.current());
+        if (stream) {
+            SCHEDULER.schedule(() -> startStream(exchange, answer, outcome), delay, TimeUnit.MILLISECONDS);
+        } else {
+            SCHEDULER.schedule(() -> sendAnswer(exchange, answer, outcome), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Result of one call; non-200 outcomes are sent as Gemini error bodies
+     */
+    private enum Outcome {
+        OK(200, null, null),
+        RATE_LIMITED(429, "Resource has been exhausted (e.g. check quota).", "RESOURCE_EXHAUSTED"),
+        INTERNAL(500, "An internal error has occurred.", "INTERNAL"),
+        UNAVAILABLE(503, "The model is overloaded. Please try again later.", "UNAVAILABLE"),
+        MAX_TOKENS(200, null, null),
+        SAFETY(200, null, null);
+
+        final int status;
+        final String message;
+        final String errorStatus;
+
+        Outcome(int status, String message, String errorStatus) {
+            this.status = status;
+            this.message = message;
+            this.errorStatus = errorStatus;
+        }
+
+        static Outcome pick() {
+            double roll = ThreadLocalRandom.current().nextDouble();
+            double[] rates = { RATE_429, RATE_500, RATE_503, RATE_MAX_TOKENS, RATE_SAFETY };
+            Outcome[] outcomes = { RATE_LIMITED, INTERNAL, UNAVAILABLE, MAX_TOKENS, SAFETY };
+            for (int i = 0; i < rates.length; i++) {
+                if (roll < rates[i]) {
+                    return outcomes[i];
+                }
+                roll -= rates[i];
+            }
+            return OK;
+        }
+    }
+
+    private static long sampleLatencyMillis() {
+        Random random = ThreadLocalRandom.current();
+        double millis;
+        switch (LATENCY_DIST) {
+            case "fixed":
+                millis = LATENCY_MS;
+                break;
+            case "uniform":
+                millis = random.nextDouble() * 2 * LATENCY_MS;
+                break;
+            case "exponential":
+                millis = -Math.log(1 - random.nextDouble()) * LATENCY_MS;
+                break;
+            default:
+                // lognormal with LATENCY_MS as the median: a long right tail like real model latency
+                millis = LATENCY_MS * Math.exp(LATENCY_SIGMA * random.nextGaussian());
+                break;
+        }
+        return (long) Math.min(LATENCY_MAX_MS, Math.max(0, millis));
+    }
+
+    /**
+     * Filler answer with the newlines, quotes and code that real answers contain
+     */
+    private static String answer(Random random) {
+        int target = (int) Math.max(1, ANSWER_CHARS * (1 + ANSWER_JITTER * (2 * random.nextDouble() - 1)));
+        StringBuilder text = new StringBuilder(target + 64);
+        text.append("Mock answer: ");
+        while (text.length() < target) {
+            int roll = random.nextInt(40);
+            if (roll == 0) {
+                text.append("\n\n```java\nString s = \"node\\tvalue\";\n```\n\n");
+            } else if (roll == 1) {
+                text.append(".\n");
+            } else {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+        }
+        text.setLength(target);
+        return text.toString();
+    }
+
+    private static void sendAnswer(HttpExchange exchange, String answer, Outcome outcome) {
+        String json;
+        if (outcome == Outcome.SAFETY) {
+            json = "{\"candidates\": [{\"finishReason\": \"SAFETY\", \"index\": 0, \"safetyRatings\": ["
+                    + "{\"category\": \"HARM_CATEGORY_DANGEROUS_CONTENT\", \"probability\": \"HIGH\"}]}],"
+                    + usage(0) + "}";
+        } else {
+            String text = outcome == Outcome.MAX_TOKENS ? answer.substring(0, answer.length() / 2) : answer;
+            json = "{\"candidates\": [{\"content\": {\"parts\": [{\"text\": \"" + escapeJson(text) + "\"}], "
+                    + "\"role\": \"model\"}, \"finishReason\": \"" + (outcome == Outcome.MAX_TOKENS ? "MAX_TOKENS" : "STOP")
+                    + "\", \"index\": 0}]," + usage(text.length()) + ", \"modelVersion\": \"mock\"}";
+        }
+        send(exchange, 200, json);
+    }
+
+    private static void startStream(HttpExchange exchange, String answer, Outcome outcome) {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+        } catch (IOException e) {
+            exchange.close();
+            return;
+        }
+        // A blocked answer stops early; a truncated one stops halfway
+        int end = outcome == Outcome.OK ? answer.length() : answer.length() / 2;
+        streamChunk(exchange, answer, 0, end, outcome);
+    }
+
+    /**
+     * Writes one SSE chunk and schedules the next, so no thread waits between chunks
+     */
+    private static void streamChunk(HttpExchange exchange, String answer, int from, int end, Outcome outcome) {
+        int to = Math.min(end, from + Math.max(1, CHUNK_CHARS));
+        boolean last = to >= end;
+        String finish = !last ? null : outcome == Outcome.OK ? "STOP" : outcome.name();
+        String chunk = "{\"candidates\": [{\"content\": {\"parts\": [{\"text\": \"" + escapeJson(answer.substring(from, to))
+                + "\"}], \"role\": \"model\"}" + (finish != null ? ", \"finishReason\": \"" + finish + "\"" : "")
+                + ", \"index\": 0}]" + (last ? "," + usage(end) : "") + "}";
+        try {
+            OutputStream out = exchange.getResponseBody();
+            out.write(("data: " + chunk + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            if (last) {
+                out.close();
+                return;
+            }
+        } catch (IOException e) {
+            // The tutor cancelled the stream
+            exchange.close();
+            return;
+        }
+        SCHEDULER.schedule(() -> streamChunk(exchange, answer, to, end, outcome), CHUNK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static String usage(int answerChars) {
+        int answerTokens = answerChars / 4;
+        return " \"usageMetadata\": {\"promptTokenCount\": 42, \"candidatesTokenCount\": " + answerTokens
+                + ", \"totalTokenCount\": " + (42 + answerTokens) + "}";
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message, String errorStatus) {
+        send(exchange, status, "{\"error\": {\"code\": " + status + ", \"message\": \"" + escapeJson(message)
+                + "\", \"status\": \"" + errorStatus + "\"}}");
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            // Like Gemini, gzip whole responses for clients that ask
+            String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (accept != null && accept.contains("gzip")) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 2);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+                    gzip.write(bytes);
+                }
+                bytes = buffer.toByteArray();
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } catch (IOException e) {
+            exchange.close();
+        }
+    }
+
+    private static String escapeJson(String text) {
+        return text.replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n")
+                .replace("\r", "\\r")
+                .replace("\t", "\\t");
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private static final class DaemonFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "mock-gemini-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}